@@ -9,8 +9,44 @@ public class IC_Config implements ConfigData {
 	public int horizontalSendLimit = 70;
 	@Comment("Should usually be atmosphereRadius+2")
 	public int portalDepth = 30;
+	@Comment("Blocks up to this distance behind the portal plane are refreshed every frame")
+	public int nearRefreshDepth = 8;
+	@Comment("Blocks further behind the portal than nearRefreshDepth are only refreshed every this many frames")
+	public int farRefreshInterval = 4;
+	@Comment("Solid blocks further than this behind the portal are shown as block display entities instead of fake blocks. 0 disables it")
+	public int impostorDistance = 0;
+	@Comment("Maximum number of block display entities used per player for distant portal geometry")
+	public int maxImpostorEntities = 256;
+	@Comment("Players further than this from a portal share one coarse view of it instead of getting their own. 0 disables it")
+	public int sharedViewDistance = 0;
+	@Comment("How deep behind the portal the shared view reaches. It always reaches at least the outer layer of the atmosphere")
+	public int sharedViewDepth = 12;
+	@Comment("How many portal ticks a shared view is reused before it is rebuilt")
+	public int sharedViewRebuildTicks = 40;
+	@Comment("Cells whose source and destination sections didn't change are kept from the last frame instead of being resolved again. Every this many frames everything is resolved anyway. 0 disables it")
+	public int incrementalRefreshFrames = 40;
+	@Comment("How many frames a fake block stays after leaving the view before it is reverted")
+	public int purgeHysteresisFrames = 3;
+	@Comment("Maximum number of newly revealed blocks sent per frame, nearest to the portal first. 0 disables the limit")
+	public int revealBlocksPerFrame = 4096;
+	@Comment("A chunk column that gets at least this many block updates in one frame is sent as a whole chunk instead, if that is cheaper for the network and the client. The client side of that cost is an estimate, so it is off by default. 0 disables it")
+	public int denseColumnThreshold = 0;
+	@Comment("Upper bound for the memory held by the portal caches of all players together, in megabytes. Once it is exceeded, parts that are out of view are reverted and no new parts are revealed until usage drops, which can leave holes in portal views. 0 disables it")
+	public int memoryBudgetMb = 0;
 	@Comment("The radius where the outer block of the atmosphere should be")
 	private int atmosphereRadius = 28;
+	@Comment("Only send the visible boundary layers of the atmosphere instead of filling everything behind it")
+	public boolean atmosphereShellOnly = true;
+	@Comment("Only refresh portal blocks inside the player's view cone, everything else keeps its last sent state")
+	public boolean viewConeCulling = false;
+	@Comment("Full angle of the view cone in degrees, should cover the diagonal of the client's field of view")
+	public double viewConeAngle = 130;
+	@Comment("Extra degrees added around the view cone to hide head turns")
+	public double viewConeGuardAngle = 15;
+	@Comment("Render portal views from where the player is predicted to be once the frame arrives, based on movement and ping")
+	public boolean predictiveEye = false;
+	@Comment("Upper bound for how far ahead the eye position is predicted, in milliseconds")
+	public int predictionMaxMillis = 250;
 	@Comment("Measured in chunks")
 	public int renderDistance = 3;
 	public boolean debugParticles = false;
@@ -20,15 +56,26 @@ public class IC_Config implements ConfigData {
 	public transient double squaredAtmosphereRadius;
 	public transient double squaredAtmosphereRadiusPlusOne;
 	public transient double squaredAtmosphereRadiusMinusOne;
+	public transient double squaredAtmosphereShellOuterRadius;
 
 	@Override
 	public void validatePostLoad() throws ValidationException {
 		if (atmosphereRadius >= portalDepth) {
 			throw new ValidationException("atmosphereRadius should be smaller then portalDepth");
 		}
+		if (farRefreshInterval < 1) {
+			throw new ValidationException("farRefreshInterval should be at least 1");
+		}
+		if (sharedViewRebuildTicks < 1) {
+			throw new ValidationException("sharedViewRebuildTicks should be at least 1");
+		}
+		if (memoryBudgetMb < 0) {
+			throw new ValidationException("memoryBudgetMb can't be negative");
+		}
 
 		squaredAtmosphereRadius = Math.pow(atmosphereRadius, 2);
 		squaredAtmosphereRadiusPlusOne = Math.pow(atmosphereRadius+1, 2);
 		squaredAtmosphereRadiusMinusOne = Math.pow(atmosphereRadius-1, 2);
+		squaredAtmosphereShellOuterRadius = Math.pow(atmosphereRadius+2, 2);
 	}
 }
@@ -1,10 +1,12 @@
 package com.lukarbonite.immersive_serverside;
 
+import com.lukarbonite.immersive_serverside.objects.SectionChangeTracker;
 import com.mojang.brigadier.Command;
 import me.shedaniel.autoconfig.AutoConfig;
 import me.shedaniel.autoconfig.serializer.JanksonConfigSerializer;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 import net.fabricmc.fabric.api.gamerule.v1.GameRuleFactory;
@@ -15,6 +17,8 @@ import net.minecraft.world.GameRules;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.Map;
+
 public class ImmersiveServerside implements ModInitializer {
     public static final Logger LOGGER = LogManager.getLogger("ImmersiveServerside");
     public static Thread cursednessThread;
@@ -55,6 +59,18 @@ public class ImmersiveServerside implements ModInitializer {
             }
         });
 
+        ServerChunkEvents.CHUNK_LOAD.register((world, chunk) -> {
+            if (serversideServer != null) {
+                SectionChangeTracker.markChunkLoaded(world, chunk.getPos());
+                serversideServer.onChunkChanged(world, chunk.getPos());
+            }
+        });
+        ServerChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> {
+            if (serversideServer != null) {
+                serversideServer.onChunkChanged(world, chunk.getPos());
+            }
+        });
+
         CommandRegistrationCallback.EVENT.register((dispatcher, registryAccess, environment) -> dispatcher.register(CommandManager.literal("portal")
                 .then(CommandManager.literal("toggle").executes((context) -> {
                     PlayerInterface pi = (PlayerInterface) context.getSource().getPlayer();
@@ -74,6 +90,30 @@ public class ImmersiveServerside implements ModInitializer {
                         }
                     }
                     return Command.SINGLE_SUCCESS;
+                }))
+                .then(CommandManager.literal("memory").requires(source -> source.hasPermissionLevel(2)).executes((context) -> {
+                    if (serversideServer == null) return 0;
+                    PortalMemoryBudget memoryBudget = serversideServer.getMemoryBudget();
+                    Map<String, PortalMemoryBudget.Usage> report = memoryBudget.getLastReport();
+
+                    long total = report.values().stream().mapToLong(PortalMemoryBudget.Usage::total).sum();
+                    int budgetMb = AutoConfig.getConfigHolder(IC_Config.class).getConfig().memoryBudgetMb;
+                    String header = "Portal caches hold " + formatMegabytes(total) + (budgetMb > 0 ? " of " + budgetMb + " MB" : "");
+                    context.getSource().sendFeedback(() -> Text.literal(header), false);
+                    report.forEach((name, usage) -> {
+                        String line = name + ": " + formatMegabytes(usage.total())
+                                + " (block cache " + formatMegabytes(usage.blockCache())
+                                + ", visible blocks " + formatMegabytes(usage.visibleBlocks())
+                                + ", portal frames " + formatMegabytes(usage.portalFrames())
+                                + ", frustums " + formatMegabytes(usage.frustums())
+                                + ", world views " + formatMegabytes(usage.worldViews()) + ")";
+                        context.getSource().sendFeedback(() -> Text.literal(line), false);
+                    });
+                    return Command.SINGLE_SUCCESS;
                 }))));
     }
+
+    private static String formatMegabytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
 }
\ No newline at end of file
@@ -2,10 +2,21 @@ package com.lukarbonite.immersive_serverside;
 
 import com.lukarbonite.immersive_serverside.objects.*;
 import com.lukarbonite.immersive_serverside.rendering.DebugVisualizer;
+import com.lukarbonite.immersive_serverside.rendering.DenseColumnEncoder;
 import com.lukarbonite.immersive_serverside.rendering.FakeEntityManager;
+import com.lukarbonite.immersive_serverside.rendering.ImpostorRenderer;
+import com.lukarbonite.immersive_serverside.rendering.PortalFrame;
 import com.lukarbonite.immersive_serverside.rendering.PortalLightingManager;
 import com.lukarbonite.immersive_serverside.rendering.PortalRenderer;
+import com.lukarbonite.immersive_serverside.rendering.SharedPortalViews;
 import com.mojang.datafixers.util.Pair;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongList;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
 import net.minecraft.block.entity.BlockEntity;
@@ -31,11 +42,17 @@ public class PlayerManager {
     private final ServersideServer serversideServer;
     private final PortalManager portalManager;
     private final BlockCache blockCache = new BlockCache();
+    private final EyePredictor eyePredictor;
     private final Set<UUID> hiddenEntities = ConcurrentHashMap.newKeySet();
     private final Map<UUID, Integer> flickerGuard = new ConcurrentHashMap<>();
+    // Frames each block has been out of view while its revert is held back
+    private volatile Long2IntMap purgeGuard = new Long2IntOpenHashMap();
+    // The version of each shared portal view this player's client currently shows
+    private final Map<SharedPortalViews.Key, Integer> sharedViewVersions = new ConcurrentHashMap<>();
 
     private final FakeEntityManager fakeEntityManager;
     private final DebugVisualizer debugVisualizer;
+    private final ImpostorRenderer impostorRenderer;
 
     private AsyncWorldView sourceView;
     private AsyncWorldView destinationView;
@@ -44,14 +61,27 @@ public class PlayerManager {
     private volatile List<Entity> nearbyEntities = new ArrayList<>();
     private volatile Map<UUID, Entity> destinationEntityMap = new HashMap<>();
     private volatile List<Portal> portalsToProcess = new ArrayList<>();
-    private final Set<BlockPos> previouslyVisibleBlocks = ConcurrentHashMap.newKeySet();
-
-    private final Map<BlockPos, ViewFrustum> viewFrustumCache = new HashMap<>();
-    private final Map<BlockPos, ViewFrustum> entityFrustumCache = new HashMap<>();
-    private Vec3d lastPlayerPosForFrustumCache = Vec3d.ZERO;
-    private Vec2f lastPlayerLookForFrustumCache = Vec2f.ZERO;
+    private volatile SectionBitSet previouslyVisibleBlocks = new SectionBitSet();
+
+    private final FrustumCache viewFrustumCache = new FrustumCache(FRUSTUM_CACHE_SIZE);
+    private final FrustumCache entityFrustumCache = new FrustumCache(FRUSTUM_CACHE_SIZE);
+    private final Map<BlockPos, PortalRenderer.CachedOcclusion> occlusionCache = new HashMap<>();
+    private final Map<BlockPos, PortalFrame> portalFrames = new HashMap<>();
+    // What the last lighting pass covered, so a frame that changed nothing doesn't have to redo it
+    private Long2ObjectMap<TransformProfile> lastLitCells = Long2ObjectMaps.emptyMap();
+    private Set<ChunkSectionPos> lastLitSections = Set.of();
+    private long lastLitMillis;
+    private int lastLitTick;
 
     private static final int FLICKER_GUARD_TICKS = 5;
+    private static final int FRUSTUM_CACHE_SIZE = 64;
+    // Light can also change without any tracked block change, e.g. spreading in from a neighbouring section,
+    // so an unchanged view is still relit this often
+    private static final int LIGHT_REFRESH_TICKS = 20;
+    // A key and a value in the open hash map, at its default load factor
+    private static final long PURGE_GUARD_ENTRY_BYTES = 16;
+    // The packed long key, the chunk reference and the links of the linked hash map, not the chunk itself
+    private static final long CHUNK_REFERENCE_BYTES = 32;
 
     public PlayerManager(ServerPlayerEntity player, IC_Config icConfig, ServersideServer serversideServer) {
         this.player = player;
@@ -60,6 +90,8 @@ public class PlayerManager {
         this.portalManager = new PortalManager(player, icConfig);
         this.fakeEntityManager = new FakeEntityManager(player);
         this.debugVisualizer = new DebugVisualizer(player, icConfig);
+        this.impostorRenderer = new ImpostorRenderer(player, icConfig);
+        this.eyePredictor = new EyePredictor(icConfig);
     }
 
     public void tickMainThread(int tickCount) {
@@ -68,7 +100,7 @@ public class PlayerManager {
         boolean worldChanged = sourceWorld != this.currentSourceWorld;
         if (worldChanged || this.sourceView == null || this.destinationView == null) {
             if (this.sourceView != null) {
-                serversideServer.addTask(this::purgeAllVisuals);
+                serversideServer.addPortalTask(this::purgeAllVisuals);
             }
             this.currentSourceWorld = sourceWorld;
             this.sourceView = new AsyncWorldView(sourceWorld);
@@ -76,7 +108,8 @@ public class PlayerManager {
         }
 
         if (tickCount % 30 == 0 || worldChanged) {
-            portalManager.update(sourceView);
+            // The render views belong to the portal thread, the scan gets a view of its own
+            portalManager.update(new AsyncWorldView(sourceWorld));
         }
 
         this.portalsToProcess = new ArrayList<>(portalManager.getPortals());
@@ -104,35 +137,40 @@ public class PlayerManager {
 
         Map<UUID, Entity> entitiesToUpdate = fakeEntityManager.getEntitiesToUpdateOnMainThread();
         if (!entitiesToUpdate.isEmpty()) {
+            List<Packet<?>> trackerUpdates = new ArrayList<>();
             for (Map.Entry<UUID, Entity> entry : entitiesToUpdate.entrySet()) {
                 Entity realEntity = entry.getValue();
                 Integer fakeId = fakeEntityManager.getFakeId(realEntity.getUuid());
                 if (fakeId != null) {
                     List<DataTracker.SerializedEntry<?>> trackedValues = realEntity.getDataTracker().getDirtyEntries();
                     if (trackedValues != null && !trackedValues.isEmpty()) {
-                        player.networkHandler.sendPacket(new EntityTrackerUpdateS2CPacket(fakeId, trackedValues));
+                        trackerUpdates.add(new EntityTrackerUpdateS2CPacket(fakeId, trackedValues));
                     }
                 }
             }
+            Util.sendBundled(player, trackerUpdates);
         }
     }
 
     public void tickAsync(int tickCount) {
+        AsyncWorldView source = this.sourceView;
+        AsyncWorldView destination = this.destinationView;
+        if (source != null) source.sync();
+        if (destination != null) destination.sync();
+
         if (!((PlayerInterface) player).immersivecursedness$getEnabled() || player.isSleeping()) {
             if (debugVisualizer.isCleanupNeeded()) {
                 serversideServer.addTask(this::purgeDebugVisuals);
             }
+            if (impostorRenderer.isCleanupNeeded()) {
+                List<Packet<?>> packets = new ArrayList<>();
+                impostorRenderer.purge(packets);
+                serversideServer.addTask(() -> Util.sendBundled(player, packets));
+            }
             return;
         }
 
-        final Vec3d currentPlayerPos = player.getPos();
-        final Vec2f currentPlayerLook = player.getRotationClient();
-        if (!currentPlayerPos.equals(this.lastPlayerPosForFrustumCache) || !currentPlayerLook.equals(this.lastPlayerLookForFrustumCache)) {
-            this.viewFrustumCache.clear();
-            this.entityFrustumCache.clear();
-            this.lastPlayerPosForFrustumCache = currentPlayerPos;
-            this.lastPlayerLookForFrustumCache = currentPlayerLook;
-        }
+        eyePredictor.update(player);
 
         flickerGuard.replaceAll((k, v) -> v - 1);
         flickerGuard.entrySet().removeIf(entry -> entry.getValue() <= 0);
@@ -147,8 +185,8 @@ public class PlayerManager {
 
         final List<Packet<?>> packetsToSend = new ArrayList<>();
         final BlockUpdateMap blockUpdatesToSend = new BlockUpdateMap();
-        final Set<BlockPos> blocksInViewPositions = new HashSet<>();
-        final Map<BlockPos, TransformProfile> blockToProfileMap = new HashMap<>();
+        final SectionBitSet blocksInViewPositions = new SectionBitSet();
+        final Long2ObjectMap<TransformProfile> blockToProfileMap = new Long2ObjectOpenHashMap<>();
         final Set<UUID> entitiesInCullingZone = new HashSet<>();
         boolean isNearPortal = false;
 
@@ -157,19 +195,55 @@ public class PlayerManager {
         final List<Vec3d[]> cornerRaycastDebugData = new ArrayList<>();
         final List<Vec3d[]> offsetCornerRaycastDebugData = new ArrayList<>();
 
-        PortalRenderer portalRenderer = new PortalRenderer(player, icConfig, blockCache, viewFrustumCache);
-        for (Portal portal : portalsToProcess) {
+        final List<Portal> portals = this.portalsToProcess;
+        PortalRenderer portalRenderer = new PortalRenderer(player, icConfig, blockCache, viewFrustumCache, tickCount, portals, eyePredictor, occlusionCache, portalFrames);
+        final Set<SharedPortalViews.Key> sharedViewsShown = new HashSet<>();
+        final Set<BlockPos> portalsRendered = new HashSet<>();
+        for (Portal portal : portals) {
             if (portal.isCloserThan(player.getPos(), 8)) {
                 isNearPortal = true;
             }
-            portalRenderer.processPortal(portal, sourceView, destinationView, blocksInViewPositions, blockToProfileMap, blockUpdatesToSend, packetsToSend, entitiesInCullingZone, nearbyEntities, raycastDebugData);
+            SharedPortalViews.Key sharedViewKey = SharedPortalViews.getKey(portal, sourceWorld, eyePredictor.getPredictedEyePos());
+            if (icConfig.sharedViewDistance > 0 && portal.getTransformProfile() != null && !portal.isCloserThan(eyePredictor.getPredictedEyePos(), icConfig.sharedViewDistance)) {
+                SharedPortalViews.View sharedView = serversideServer.getSharedPortalViews().get(sharedViewKey, portal, sourceView, destinationView, tickCount);
+                sharedViewsShown.add(sharedViewKey);
+                Integer shownVersion = sharedViewVersions.put(sharedViewKey, sharedView.getVersion());
+                boolean resend = shownVersion == null || shownVersion != sharedView.getVersion();
+                portalRenderer.processSharedPortal(portal, sharedView, resend, sourceView, blocksInViewPositions, blockToProfileMap, blockUpdatesToSend, packetsToSend);
+            } else {
+                portalsRendered.add(portal.getLowerLeft());
+                portalRenderer.processPortal(portal, sourceView, destinationView, blocksInViewPositions, blockToProfileMap, blockUpdatesToSend, packetsToSend, entitiesInCullingZone, nearbyEntities, raycastDebugData);
+            }
         }
+        // Blocks of shared views that aren't shown anymore get purged, so they have to be sent in full next time.
+        sharedViewVersions.keySet().retainAll(sharedViewsShown);
+        // Same for the frames of portals that weren't rendered exactly, their cells may have been purged in between.
+        portalFrames.keySet().retainAll(portalsRendered);
+        portalRenderer.finishImpostors(impostorRenderer, blocksInViewPositions, blockToProfileMap, blockUpdatesToSend, packetsToSend);
+
+        final SectionBitSet blocksToPurge = this.previouslyVisibleBlocks.difference(blocksInViewPositions);
+        final SectionBitSet blocksHeldBack = holdBackPurges(blocksToPurge);
+        // Held back cells still show the destination, so they keep being lit the way the last pass lit them
+        blocksHeldBack.forEach(packedPos -> {
+            TransformProfile profile = lastLitCells.get(packedPos);
+            if (profile != null) blockToProfileMap.put(packedPos, profile);
+        });
 
-        Set<BlockPos> blocksToPurge = new HashSet<>(this.previouslyVisibleBlocks);
-        blocksToPurge.removeAll(blocksInViewPositions);
-
-        final Map<ChunkSectionPos, Pair<ChunkNibbleArray, ChunkNibbleArray>> sectionLightData = new HashMap<>();
-        packetsToSend.addAll(PortalLightingManager.calculateLighting(blockToProfileMap, sourceView, destinationView, sectionLightData));
+        final Set<ChunkSectionPos> litSections;
+        if (portalRenderer.isSteady() && blockUpdatesToSend.isEmpty() && blocksToPurge.isEmpty() && tickCount - lastLitTick < LIGHT_REFRESH_TICKS
+                && blockToProfileMap.equals(lastLitCells) && !hasLightChanged(sourceWorld)) {
+            // The client still shows the light of the last pass
+            litSections = lastLitSections;
+        } else {
+            final long litMillis = System.currentTimeMillis();
+            final Map<ChunkSectionPos, Pair<ChunkNibbleArray, ChunkNibbleArray>> sectionLightData = new HashMap<>();
+            packetsToSend.addAll(PortalLightingManager.calculateLighting(blockToProfileMap, sourceView, destinationView, sectionLightData));
+            litSections = sectionLightData.keySet();
+            lastLitCells = blockToProfileMap;
+            lastLitSections = litSections;
+            lastLitMillis = litMillis;
+            lastLitTick = tickCount;
+        }
 
         final Set<ChunkSectionPos> purgedSections = new HashSet<>();
         blockCache.purgePositions(blocksToPurge, (pos, cachedState) -> {
@@ -186,11 +260,13 @@ public class PlayerManager {
             }
         });
 
-        purgedSections.removeAll(sectionLightData.keySet());
+        purgedSections.removeAll(litSections);
         packetsToSend.addAll(PortalLightingManager.getRevertPackets(purgedSections, sourceWorld));
+        final List<DenseColumnEncoder.Column> denseColumns = DenseColumnEncoder.findDenseColumns(blockUpdatesToSend, blockCache, sourceWorld, icConfig.denseColumnThreshold);
 
-        this.previouslyVisibleBlocks.clear();
-        this.previouslyVisibleBlocks.addAll(blocksInViewPositions);
+        blocksInViewPositions.addAll(blocksHeldBack);
+        this.previouslyVisibleBlocks = blocksInViewPositions;
+        blockCache.markInView(blocksInViewPositions, tickCount);
 
         ((PlayerInterface) player).immersivecursedness$setCloseToPortal(isNearPortal);
 
@@ -205,11 +281,61 @@ public class PlayerManager {
 
         serversideServer.addTask(() -> {
             if (!player.networkHandler.isConnectionOpen()) return;
-            blockUpdatesToSend.sendTo(player);
-            packetsToSend.forEach(p -> player.networkHandler.sendPacket(p));
+            // Whole columns first, so the deltas and light of the frame apply on top of them
+            List<Packet<?>> framePackets = new ArrayList<>(DenseColumnEncoder.encodeDenseColumns(player, sourceWorld, denseColumns, blockUpdatesToSend));
+            framePackets.addAll(blockUpdatesToSend.toPackets());
+            framePackets.addAll(packetsToSend);
+            Util.sendBundled(player, framePackets);
         });
     }
 
+    /**
+     * Whether a block changed in a section the last pass lit, or in one next to it, since that pass.
+     * Its light may have changed with it, and the server then sends its own light for the section,
+     * replacing the destination's light on the client.
+     */
+    private boolean hasLightChanged(ServerWorld sourceWorld) {
+        for (ChunkSectionPos sectionPos : lastLitSections) {
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dz = -1; dz <= 1; dz++) {
+                        long sectionKey = ChunkSectionPos.asLong(sectionPos.getX() + dx, sectionPos.getY() + dy, sectionPos.getZ() + dz);
+                        if (SectionChangeTracker.hasChangedSince(sourceWorld, sectionKey, lastLitMillis)) return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps blocks that just left the view for a few frames before reverting them,
+     * so that a player wobbling in front of a portal doesn't cause a revert and re-send every frame.
+     * @param blocksToPurge The blocks that left the view, held back blocks are removed from it.
+     * @return The blocks that are held back this frame.
+     */
+    private SectionBitSet holdBackPurges(SectionBitSet blocksToPurge) {
+        SectionBitSet heldBack = new SectionBitSet();
+        final Long2IntMap guard = this.purgeGuard;
+        // Anything that came back into view starts over the next time it leaves
+        LongIterator guardIterator = guard.keySet().iterator();
+        while (guardIterator.hasNext()) {
+            if (!blocksToPurge.contains(guardIterator.nextLong())) guardIterator.remove();
+        }
+        if (icConfig.purgeHysteresisFrames <= 0) return heldBack;
+
+        blocksToPurge.forEach(pos -> {
+            int framesOutOfView = guard.addTo(pos, 1) + 1;
+            if (framesOutOfView <= icConfig.purgeHysteresisFrames) {
+                heldBack.add(pos);
+            } else {
+                guard.remove(pos);
+            }
+        });
+        blocksToPurge.removeAll(heldBack);
+        return heldBack;
+    }
+
     private void processRealEntities(List<Packet<?>> packetsToSend, Set<UUID> entitiesInCullingZone, List<Entity> nearbyEntities) {
         List<Entity> entitiesToHide = new ArrayList<>();
         List<Entity> entitiesToShow = new ArrayList<>();
@@ -238,62 +364,154 @@ public class PlayerManager {
         }
     }
 
+    /**
+     * Estimates the memory held by this player's portal state. Must be called from the portal thread.
+     */
+    public PortalMemoryBudget.Usage getMemoryUsage() {
+        long portalFrameBytes = 0;
+        for (PortalFrame frame : portalFrames.values()) {
+            portalFrameBytes += frame.getEstimatedBytes();
+        }
+        long chunkCount = 0;
+        AsyncWorldView source = this.sourceView;
+        AsyncWorldView destination = this.destinationView;
+        if (source != null) chunkCount += source.getCachedChunkCount();
+        if (destination != null) chunkCount += destination.getCachedChunkCount();
+
+        return new PortalMemoryBudget.Usage(
+                blockCache.getEstimatedBytes(),
+                previouslyVisibleBlocks.getEstimatedBytes() + purgeGuard.size() * PURGE_GUARD_ENTRY_BYTES,
+                portalFrameBytes,
+                (long) (viewFrustumCache.size() + entityFrustumCache.size()) * FrustumCache.BYTES_PER_FRUSTUM,
+                chunkCount * CHUNK_REFERENCE_BYTES
+        );
+    }
+
+    /**
+     * Called from the main thread when a chunk of any world is loaded or unloaded.
+     */
+    public void onChunkChanged(ServerWorld world, long chunkKey) {
+        AsyncWorldView source = this.sourceView;
+        AsyncWorldView destination = this.destinationView;
+        if (source != null && source.getWorld() == world) source.invalidateChunk(chunkKey);
+        if (destination != null && destination.getWorld() == world) destination.invalidateChunk(chunkKey);
+    }
+
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Drops whole sections of the block cache and reverts them to the source blocks on the client, all in one bundle.
+     * Must be called from the portal thread.
+     */
+    public void evictSections(LongList sectionKeys) {
+        AsyncWorldView view = this.sourceView;
+        if (view == null) return;
+        BlockUpdateMap updatesToSend = new BlockUpdateMap();
+        List<Packet<?>> packets = new ArrayList<>();
+        Set<ChunkSectionPos> evictedSections = new HashSet<>();
+        LongIterator iterator = sectionKeys.iterator();
+        while (iterator.hasNext()) {
+            long sectionKey = iterator.nextLong();
+            evictedSections.add(ChunkSectionPos.from(sectionKey));
+            blockCache.purgeSection(sectionKey, (pos, cachedState) -> {
+                BlockState originalState = view.getBlock(pos);
+                if (!originalState.equals(cachedState)) {
+                    updatesToSend.put(pos, originalState);
+                    BlockEntity originalBlockEntity = view.getBlockEntity(pos);
+                    if (originalBlockEntity != null) {
+                        Packet<?> packet = Util.createFakeBlockEntityPacket(originalBlockEntity, pos, view.getWorld());
+                        if (packet != null) packets.add(packet);
+                    }
+                }
+            });
+        }
+        packets.addAll(PortalLightingManager.getRevertPackets(evictedSections, view.getWorld()));
+        // Kept cells are assumed to be cached, so the incremental state can't survive this,
+        // and shared views that covered the section have to be sent again
+        portalFrames.clear();
+        sharedViewVersions.clear();
+
+        serversideServer.addTask(() -> {
+            if (!player.networkHandler.isConnectionOpen()) return;
+            List<Packet<?>> evictionPackets = new ArrayList<>(updatesToSend.toPackets());
+            evictionPackets.addAll(packets);
+            Util.sendBundled(player, evictionPackets);
+        });
+    }
+
     public void onRemoved() {
-        serversideServer.addTask(this::purgeAllVisuals);
+        serversideServer.addPortalTask(this::purgeAllVisuals);
     }
 
+    /**
+     * Must run on the portal thread, the packets are sent from the main thread afterwards.
+     */
     private void purgeAllVisuals() {
-        if (!player.networkHandler.isConnectionOpen()) return;
         List<Packet<?>> packets = new ArrayList<>();
         packets.addAll(fakeEntityManager.getPurgePackets());
         debugVisualizer.purge(packets);
+        impostorRenderer.purge(packets);
 
         fakeEntityManager.purgeAll();
 
         blockCache.purgeAll((pos, cachedState) -> {});
-        previouslyVisibleBlocks.clear();
+        previouslyVisibleBlocks = new SectionBitSet();
+        purgeGuard = new Long2IntOpenHashMap();
+        sharedViewVersions.clear();
         viewFrustumCache.clear();
         entityFrustumCache.clear();
+        occlusionCache.clear();
+        portalFrames.clear();
 
-        packets.forEach(p -> player.networkHandler.sendPacket(p));
+        serversideServer.addTask(() -> {
+            if (!player.networkHandler.isConnectionOpen()) return;
+            Util.sendBundled(player, packets);
+        });
     }
 
     public void purgeCache() {
         if (serversideServer == null) return;
+        ((PlayerInterface) player).immersivecursedness$setCloseToPortal(false);
+        // The cache belongs to the portal thread, so the purge is handed over to it
+        serversideServer.addPortalTask(this::purgeCacheOnPortalThread);
+    }
 
+    private void purgeCacheOnPortalThread() {
         BlockUpdateMap updatesToSend = new BlockUpdateMap();
         final AsyncWorldView viewForLambda = this.sourceView != null ? this.sourceView : new AsyncWorldView(player.getWorld());
-        ((PlayerInterface) player).immersivecursedness$setCloseToPortal(false);
 
-        this.previouslyVisibleBlocks.clear();
+        this.previouslyVisibleBlocks = new SectionBitSet();
+        this.purgeGuard = new Long2IntOpenHashMap();
+        this.sharedViewVersions.clear();
+        this.portalFrames.clear();
         blockCache.purgeAll((pos, cachedState) -> {
             BlockState originalState = viewForLambda.getBlock(pos);
             if (originalState != cachedState) updatesToSend.put(pos, originalState);
         });
 
-        List<Entity> entitiesToShow = new ArrayList<>();
-        if (!hiddenEntities.isEmpty()) {
-            ServerWorld sourceWorld = player.getWorld();
-            for (UUID uuid : hiddenEntities) {
-                Entity entity = sourceWorld.getEntity(uuid);
-                if (entity != null) entitiesToShow.add(entity);
-            }
-            hiddenEntities.clear();
-        }
+        final List<UUID> entitiesToShow = new ArrayList<>(hiddenEntities);
+        hiddenEntities.clear();
         flickerGuard.clear();
 
         List<Packet<?>> packets = new ArrayList<>(fakeEntityManager.getPurgePackets());
         fakeEntityManager.purgeAll();
         debugVisualizer.purge(packets);
+        impostorRenderer.purge(packets);
 
         serversideServer.addTask(() -> {
             if (!player.networkHandler.isConnectionOpen()) return;
-            updatesToSend.sendTo(player);
-            packets.forEach(p -> player.networkHandler.sendPacket(p));
+            List<Packet<?>> purgePackets = new ArrayList<>(updatesToSend.toPackets());
+            purgePackets.addAll(packets);
 
-            for (Entity entity : entitiesToShow) {
-                new EntityTrackerEntry(player.getWorld(), entity, 0, false, (p) -> {}, (p, l) -> {}).sendPackets(player, player.networkHandler::sendPacket);
+            ServerWorld sourceWorld = player.getWorld();
+            for (UUID uuid : entitiesToShow) {
+                Entity entity = sourceWorld.getEntity(uuid);
+                if (entity == null) continue;
+                new EntityTrackerEntry(player.getWorld(), entity, 0, false, (p) -> {}, (p, l) -> {}).sendPackets(player, purgePackets::add);
             }
+            Util.sendBundled(player, purgePackets);
         });
     }
 
@@ -301,7 +519,7 @@ public class PlayerManager {
         if (!player.networkHandler.isConnectionOpen()) return;
         List<Packet<?>> packets = new ArrayList<>();
         debugVisualizer.purge(packets);
-        packets.forEach(p -> player.networkHandler.sendPacket(p));
+        Util.sendBundled(player, packets);
     }
 
     @Nullable
@@ -0,0 +1,108 @@
+package com.lukarbonite.immersive_serverside;
+
+import com.lukarbonite.immersive_serverside.objects.BlockCache;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Vec3d;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the portal state of all players together under {@code memoryBudgetMb}.
+ * Once the estimate goes over, whole block cache sections that are out of view are reverted, the ones least recently
+ * in view first and the ones furthest from their player after that. Sections in the current view are never evicted.
+ * From then on no player can cache new sections until the total has dropped well under the budget again.
+ * <p>
+ * The estimates are upper bounds, so getting them under the budget keeps the real usage under it too.
+ */
+public class PortalMemoryBudget {
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+    // Growth is allowed again once the total is this far under the budget
+    private static final double RELEASE_FRACTION = 0.9;
+
+    private final IC_Config icConfig;
+    private volatile Map<String, Usage> lastReport = Map.of();
+    private boolean limited;
+
+    public record Usage(long blockCache, long visibleBlocks, long portalFrames, long frustums, long worldViews) {
+        public long total() {
+            return blockCache + visibleBlocks + portalFrames + frustums + worldViews;
+        }
+    }
+
+    private record Candidate(PlayerManager manager, long sectionKey, int lastInView, double squaredDistance) {}
+
+    public PortalMemoryBudget(IC_Config icConfig) {
+        this.icConfig = icConfig;
+    }
+
+    /**
+     * Measures every player and evicts cached sections while over the budget. Must be called from the portal thread.
+     */
+    public void enforce(Map<ServerPlayerEntity, PlayerManager> playerManagers, int tickCount) {
+        Map<String, Usage> report = new LinkedHashMap<>();
+        long total = 0;
+        for (Map.Entry<ServerPlayerEntity, PlayerManager> entry : playerManagers.entrySet()) {
+            Usage usage = entry.getValue().getMemoryUsage();
+            report.put(entry.getKey().getName().getString(), usage);
+            total += usage.total();
+        }
+        lastReport = report;
+
+        long budget = icConfig.memoryBudgetMb * BYTES_PER_MB;
+        if (budget <= 0 || total <= budget * RELEASE_FRACTION) {
+            if (limited) {
+                playerManagers.values().forEach(manager -> manager.getBlockCache().setSectionLimit(Integer.MAX_VALUE));
+                limited = false;
+            }
+            return;
+        }
+        if (total <= budget) return;
+
+        List<Candidate> candidates = new ArrayList<>();
+        for (Map.Entry<ServerPlayerEntity, PlayerManager> entry : playerManagers.entrySet()) {
+            PlayerManager manager = entry.getValue();
+            Vec3d eyePos = entry.getKey().getEyePos();
+            manager.getBlockCache().forEachSection((sectionKey, lastInView) -> {
+                // Evicting what the player is looking at would only punch holes into the view
+                if (lastInView >= tickCount) return;
+                double dx = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackX(sectionKey)) + 8 - eyePos.x;
+                double dy = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackY(sectionKey)) + 8 - eyePos.y;
+                double dz = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackZ(sectionKey)) + 8 - eyePos.z;
+                candidates.add(new Candidate(manager, sectionKey, lastInView, dx * dx + dy * dy + dz * dz));
+            });
+        }
+        candidates.sort(Comparator.comparingInt(Candidate::lastInView)
+                .thenComparing(Comparator.comparingDouble(Candidate::squaredDistance).reversed()));
+
+        Map<PlayerManager, LongList> evicted = new HashMap<>();
+        int evictedSections = 0;
+        for (Candidate candidate : candidates) {
+            if (total <= budget) break;
+            evicted.computeIfAbsent(candidate.manager(), manager -> new LongArrayList()).add(candidate.sectionKey());
+            evictedSections++;
+            // The same bound the section was counted with, so the total stays an upper bound
+            total -= BlockCache.BYTES_PER_SECTION;
+        }
+        evicted.forEach(PlayerManager::evictSections);
+        for (PlayerManager manager : playerManagers.values()) {
+            manager.getBlockCache().setSectionLimit(manager.getBlockCache().sectionCount());
+        }
+        limited = true;
+        ImmersiveServerside.LOGGER.debug("Portal caches went over the memory budget, evicted {} sections", evictedSections);
+    }
+
+    /**
+     * The usage measured during the last portal tick, by player name.
+     */
+    public Map<String, Usage> getLastReport() {
+        return lastReport;
+    }
+}
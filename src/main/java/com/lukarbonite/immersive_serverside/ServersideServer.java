@@ -1,8 +1,12 @@
 package com.lukarbonite.immersive_serverside;
 
+import com.lukarbonite.immersive_serverside.objects.SectionChangeTracker;
+import com.lukarbonite.immersive_serverside.rendering.SharedPortalViews;
 import me.shedaniel.autoconfig.AutoConfig;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
@@ -20,10 +24,16 @@ public class ServersideServer implements Runnable {
 
     private final Map<ServerPlayerEntity, PlayerManager> playerManagers = new ConcurrentHashMap<>();
     private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> portalTaskQueue = new ConcurrentLinkedQueue<>();
+    private static final int CHANGE_PRUNE_INTERVAL = 200;
+    private final SharedPortalViews sharedPortalViews;
+    private final PortalMemoryBudget memoryBudget;
 
     public ServersideServer(MinecraftServer server) {
         this.server = server;
         this.icConfig = AutoConfig.getConfigHolder(IC_Config.class).getConfig();
+        this.sharedPortalViews = new SharedPortalViews(icConfig);
+        this.memoryBudget = new PortalMemoryBudget(icConfig);
     }
 
     @Override
@@ -57,10 +67,12 @@ public class ServersideServer implements Runnable {
 
     public void stop() {
         isServerActive = false;
+        SectionChangeTracker.clear();
     }
 
     private void tickAsync() {
         tickCount++;
+        executeQueuedPortalTasks();
         // Tick player managers in parallel on the helper thread
         playerManagers.forEach((player, manager) -> {
             try {
@@ -69,6 +81,11 @@ public class ServersideServer implements Runnable {
                 ImmersiveServerside.LOGGER.error("Failed to tick player manager for " + player.getName().getString(), e);
             }
         });
+        sharedPortalViews.evictUnused(tickCount);
+        memoryBudget.enforce(playerManagers, tickCount);
+        if (tickCount % CHANGE_PRUNE_INTERVAL == 0) {
+            SectionChangeTracker.prune();
+        }
     }
 
     public void tickMainThread() {
@@ -102,6 +119,14 @@ public class ServersideServer implements Runnable {
         }
     }
 
+    /**
+     * Called from the main thread when a chunk is loaded or unloaded, so no view keeps reading a stale chunk.
+     */
+    public void onChunkChanged(ServerWorld world, ChunkPos chunkPos) {
+        long chunkKey = chunkPos.toLong();
+        playerManagers.values().forEach(manager -> manager.onChunkChanged(world, chunkKey));
+    }
+
     /**
      * Executes all pending tasks on the main server thread.
      */
@@ -123,6 +148,33 @@ public class ServersideServer implements Runnable {
         taskQueue.add(task);
     }
 
+    private void executeQueuedPortalTasks() {
+        Runnable task;
+        while ((task = portalTaskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                ImmersiveServerside.LOGGER.error("Error executing a queued portal task.", e);
+            }
+        }
+    }
+
+    /**
+     * Queues a task to be run on the portal thread before the next tick.
+     * State owned by the portal thread, like the block caches, may only be touched from such a task.
+     */
+    public void addPortalTask(Runnable task) {
+        portalTaskQueue.add(task);
+    }
+
+    public PortalMemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public SharedPortalViews getSharedPortalViews() {
+        return sharedPortalViews;
+    }
+
     @Nullable
     public PlayerManager getManager(ServerPlayerEntity player) {
         return playerManagers.get(player);
@@ -4,6 +4,7 @@ import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.network.listener.ClientPlayPacketListener;
 import net.minecraft.network.packet.Packet;
+import net.minecraft.network.packet.s2c.play.BundleS2CPacket;
 import net.minecraft.network.packet.s2c.play.EntitiesDestroyS2CPacket;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.OptionalChunk;
@@ -17,11 +18,15 @@ import com.lukarbonite.immersive_serverside.mixin.ServerChunkManagerInvoker;
 import com.lukarbonite.immersive_serverside.objects.TransformProfile;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 
 public class Util {
+    // One below the number of packets at which the client rejects a bundle
+    private static final int MAX_BUNDLE_SIZE = 4095;
+
     public static int get(BlockPos b, Direction.Axis axis) {
         return axis.choose(b.getX(), b.getY(), b.getZ());
     }
@@ -119,4 +124,31 @@ public class Util {
     public static Packet<?> createEntityHidePacket(int entityId) {
         return new EntitiesDestroyS2CPacket(entityId);
     }
+
+    /**
+     * Sends the packets in order as one bundle, so the client applies all of them in the same frame
+     * and the connection is written and flushed once.
+     * Bundles among the packets are flattened, as bundles can't be nested, and the result is only split where it
+     * would exceed the number of packets the client accepts in one bundle.
+     */
+    @SuppressWarnings("unchecked")
+    public static void sendBundled(ServerPlayerEntity player, List<? extends Packet<?>> packets) {
+        List<Packet<? super ClientPlayPacketListener>> flattened = new ArrayList<>(packets.size());
+        for (Packet<?> packet : packets) {
+            if (packet instanceof BundleS2CPacket bundle) {
+                bundle.getPackets().forEach(flattened::add);
+            } else {
+                flattened.add((Packet<? super ClientPlayPacketListener>) packet);
+            }
+        }
+
+        for (int start = 0; start < flattened.size(); start += MAX_BUNDLE_SIZE) {
+            List<Packet<? super ClientPlayPacketListener>> part = flattened.subList(start, Math.min(flattened.size(), start + MAX_BUNDLE_SIZE));
+            if (part.size() == 1) {
+                player.networkHandler.sendPacket(part.get(0));
+            } else {
+                player.networkHandler.sendPacket(new BundleS2CPacket(new ArrayList<>(part)));
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+package com.lukarbonite.immersive_serverside.mixin;
+
+import net.minecraft.network.packet.s2c.play.ChunkData;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Mutable;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+@Mixin(ChunkData.class)
+public interface ChunkDataAccessor {
+    @Mutable
+    @Accessor("sectionsData")
+    void ic$setSectionsData(byte[] v);
+}
@@ -0,0 +1,14 @@
+package com.lukarbonite.immersive_serverside.mixin;
+
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.network.packet.s2c.play.ChunkDeltaUpdateS2CPacket;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Invoker;
+
+@Mixin(ChunkDeltaUpdateS2CPacket.class)
+public interface ChunkDeltaUpdateS2CPacketInvoker {
+    @Invoker("<init>")
+    static ChunkDeltaUpdateS2CPacket ic$create(PacketByteBuf buf) {
+        throw new AssertionError("This should not be called directly.");
+    }
+}
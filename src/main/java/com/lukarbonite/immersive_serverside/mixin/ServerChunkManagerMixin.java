@@ -0,0 +1,22 @@
+package com.lukarbonite.immersive_serverside.mixin;
+
+import com.lukarbonite.immersive_serverside.objects.SectionChangeTracker;
+import net.minecraft.server.world.ServerChunkManager;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+@Mixin(ServerChunkManager.class)
+public class ServerChunkManagerMixin {
+	@Shadow @Final ServerWorld world;
+
+	@Inject(method = "markForUpdate", at = @At("HEAD"))
+	private void ic$onMarkForUpdate(BlockPos pos, CallbackInfo ci) {
+		SectionChangeTracker.markChanged(world, pos);
+	}
+}
@@ -1,6 +1,7 @@
 package com.lukarbonite.immersive_serverside.objects;
 
 import com.lukarbonite.immersive_serverside.Util;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
 import net.minecraft.block.entity.BlockEntity;
@@ -9,19 +10,35 @@ import net.minecraft.server.world.OptionalChunk;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
 import net.minecraft.world.BlockView;
+import net.minecraft.world.Heightmap;
 import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.PalettedContainer;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class AsyncWorldView implements BlockView {
-    private final Map<ChunkPos, Chunk> chunkCache = new HashMap<>();
+    // Least recently used chunks are dropped past this, a view only needs the chunks around its portals
+    private static final int MAX_CACHED_CHUNKS = 1024;
+
+    private final Long2ObjectLinkedOpenHashMap<Chunk> chunkCache = new Long2ObjectLinkedOpenHashMap<>();
+    // Chunks that were loaded or unloaded since the last sync, queued from the main thread
+    private final Queue<Long> invalidatedChunks = new ConcurrentLinkedQueue<>();
     private final ServerWorld world;
     private static final BlockState AIR = Blocks.AIR.getDefaultState();
 
+    // The chunk and the section of the last lookups. Cells are walked in runs, so most lookups hit these without touching the map.
+    private ChunkHit lastChunk;
+    private SectionHit lastSection;
+
+    private record ChunkHit(long chunkKey, Chunk chunk) {}
+    private record SectionHit(long sectionKey, ChunkSection section) {}
+
     public AsyncWorldView(ServerWorld world) {
         this.world = world;
     }
@@ -31,10 +48,14 @@ public class AsyncWorldView implements BlockView {
     }
 
     public BlockState getBlock(BlockPos pos) {
-        Chunk chunk = getChunk(pos);
-        if (chunk == null) return AIR;
+        return getBlock(pos.getX(), pos.getY(), pos.getZ());
+    }
 
-        return chunk.getBlockState(pos);
+    public BlockState getBlock(int x, int y, int z) {
+        ChunkSection section = getSection(ChunkSectionPos.getSectionCoord(x), ChunkSectionPos.getSectionCoord(y), ChunkSectionPos.getSectionCoord(z));
+        if (section == null) return AIR;
+
+        return section.getBlockState(x & 15, y & 15, z & 15);
     }
 
     @Nullable
@@ -45,29 +66,122 @@ public class AsyncWorldView implements BlockView {
         return chunk.getBlockEntity(pos);
     }
 
-    public Chunk getChunk(BlockPos p) {
-        return getChunk(new ChunkPos(p));
+    /**
+     * Returns the section containing the given position, or null if its chunk isn't available or it is outside the world.
+     */
+    @Nullable
+    public ChunkSection getSection(BlockPos pos) {
+        return getSection(ChunkSectionPos.getSectionCoord(pos.getX()), ChunkSectionPos.getSectionCoord(pos.getY()), ChunkSectionPos.getSectionCoord(pos.getZ()));
     }
 
-    public Chunk getChunk(ChunkPos chunkPos) {
-        Chunk chunk = this.chunkCache.get(chunkPos);
-        if (chunk != null) {
-            return chunk;
+    @Nullable
+    public ChunkSection getSection(int sectionX, int sectionY, int sectionZ) {
+        long sectionKey = ChunkSectionPos.asLong(sectionX, sectionY, sectionZ);
+        SectionHit hit = lastSection;
+        if (hit != null && hit.sectionKey() == sectionKey) return hit.section();
+
+        Chunk chunk = getChunk(sectionX, sectionZ);
+        if (chunk == null) return null;
+
+        int sectionIndex = chunk.sectionCoordToIndex(sectionY);
+        if (sectionIndex < 0 || sectionIndex >= chunk.getSectionArray().length) return null;
+
+        ChunkSection section = chunk.getSection(sectionIndex);
+        lastSection = new SectionHit(sectionKey, section);
+        return section;
+    }
+
+    /**
+     * Returns the state that fills the whole chunk section containing the given position,
+     * or null if the section holds more than one state. Missing chunks and positions outside the world count as air.
+     */
+    @Nullable
+    public BlockState getUniformSectionState(BlockPos pos) {
+        ChunkSection section = getSection(pos);
+        if (section == null || section.isEmpty()) return AIR;
+
+        // Only the palette is checked, so a section whose palette still lists replaced states is reported as mixed.
+        PalettedContainer<BlockState> states = section.getBlockStateContainer();
+        BlockState first = states.get(0, 0, 0);
+        return states.hasAny(state -> state != first) ? null : first;
+    }
+
+    /**
+     * Returns the Y of the highest non-air block in the column, or one below the world if there is none.
+     * Missing chunks count as air.
+     */
+    public int getTopY(int x, int z) {
+        Chunk chunk = getChunk(ChunkSectionPos.getSectionCoord(x), ChunkSectionPos.getSectionCoord(z));
+        if (chunk == null) return world.getBottomY() - 1;
+
+        return chunk.sampleHeightmap(Heightmap.Type.WORLD_SURFACE, x & 15, z & 15);
+    }
+
+    /**
+     * Marks a chunk as loaded or unloaded, so the view stops handing out the old chunk object.
+     * Can be called from any thread, it takes effect on the next {@link #sync()}.
+     */
+    public void invalidateChunk(long chunkKey) {
+        invalidatedChunks.add(chunkKey);
+    }
+
+    /**
+     * Drops the chunks invalidated since the last call. Must be called from the thread using the view.
+     */
+    public void sync() {
+        Long chunkKey;
+        while ((chunkKey = invalidatedChunks.poll()) != null) {
+            forget(chunkKey);
         }
+    }
 
-        // Exclusively use the non-blocking method.
-        // If a chunk is not immediately available, skip rendering for that portion for this tick.
-        Optional<OptionalChunk<Chunk>> chunkOpt = Util.tryGetChunkAsync(this.world, chunkPos.x, chunkPos.z);
-        if (chunkOpt.isEmpty()) {
-            return null;
+    private void forget(long chunkKey) {
+        if (chunkCache.remove(chunkKey) == null) return;
+        ChunkHit chunkHit = lastChunk;
+        if (chunkHit != null && chunkHit.chunkKey() == chunkKey) lastChunk = null;
+        SectionHit sectionHit = lastSection;
+        if (sectionHit != null && ChunkPos.toLong(ChunkSectionPos.unpackX(sectionHit.sectionKey()), ChunkSectionPos.unpackZ(sectionHit.sectionKey())) == chunkKey) {
+            lastSection = null;
         }
+    }
+
+    public int getCachedChunkCount() {
+        return chunkCache.size();
+    }
+
+    public Chunk getChunk(BlockPos p) {
+        return getChunk(ChunkSectionPos.getSectionCoord(p.getX()), ChunkSectionPos.getSectionCoord(p.getZ()));
+    }
 
-        OptionalChunk<Chunk> chunkO = chunkOpt.get();
+    public Chunk getChunk(ChunkPos chunkPos) {
+        return getChunk(chunkPos.x, chunkPos.z);
+    }
 
-        if (chunkO.isPresent()) {
+    public Chunk getChunk(int chunkX, int chunkZ) {
+        long chunkKey = ChunkPos.toLong(chunkX, chunkZ);
+        ChunkHit hit = lastChunk;
+        if (hit != null && hit.chunkKey() == chunkKey) return hit.chunk();
+
+        Chunk chunk = this.chunkCache.getAndMoveToLast(chunkKey);
+        if (chunk == null) {
+            // Exclusively use the non-blocking method.
+            // If a chunk is not immediately available, skip rendering for that portion for this tick.
+            Optional<OptionalChunk<Chunk>> chunkOpt = Util.tryGetChunkAsync(this.world, chunkX, chunkZ);
+            if (chunkOpt.isEmpty()) {
+                return null;
+            }
+
+            OptionalChunk<Chunk> chunkO = chunkOpt.get();
+            if (!chunkO.isPresent()) {
+                return null;
+            }
             chunk = chunkO.orElseThrow(NullPointerException::new);
-            this.chunkCache.put(chunkPos, chunk);
+            this.chunkCache.putAndMoveToLast(chunkKey, chunk);
+            if (this.chunkCache.size() > MAX_CACHED_CHUNKS) {
+                forget(this.chunkCache.firstLongKey());
+            }
         }
+        lastChunk = new ChunkHit(chunkKey, chunk);
         return chunk;
     }
 
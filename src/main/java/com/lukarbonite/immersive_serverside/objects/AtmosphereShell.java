@@ -0,0 +1,139 @@
+package com.lukarbonite.immersive_serverside.objects;
+
+import com.lukarbonite.immersive_serverside.IC_Config;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.util.math.Vec3d;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A precomputed classification of the cells around a portal centre into the layers of the atmosphere.
+ * The result only depends on the configured radii and on how the centre is aligned to the block grid,
+ * so a handful of templates are shared by every portal and every viewer.
+ */
+public class AtmosphereShell {
+    public static final int INSIDE = 0;
+    public static final int BETWEEN = 1;
+    public static final int ATMOSPHERE = 2;
+    public static final int BEYOND_SHELL = 3;
+
+    private static final int MAX_TEMPLATES = 32;
+    private static final Map<Key, AtmosphereShell> TEMPLATES = new ConcurrentHashMap<>();
+
+    private final int halfExtent;
+    private final int size;
+    // Two bit planes, the classification of a cell is low | high << 1
+    private final BitSet lowBits;
+    private final BitSet highBits;
+    // Lowest and highest dy classified as inside, per column
+    private final int[] insideMinDy;
+    private final int[] insideMaxDy;
+
+    private record Key(double fractionX, double fractionY, double fractionZ, double squaredRadiusMinusOne, double squaredRadius, double squaredShellOuterRadius) {}
+
+    private AtmosphereShell(Key key) {
+        this.halfExtent = MathHelper.ceil(Math.sqrt(key.squaredShellOuterRadius())) + 1;
+        this.size = halfExtent * 2 + 1;
+        this.lowBits = new BitSet(size * size * size);
+        this.highBits = new BitSet(size * size * size);
+        this.insideMinDy = new int[size * size];
+        this.insideMaxDy = new int[size * size];
+        Arrays.fill(insideMinDy, Integer.MAX_VALUE);
+        Arrays.fill(insideMaxDy, Integer.MIN_VALUE);
+
+        for (int dx = -halfExtent; dx <= halfExtent; dx++) {
+            double x = dx + 0.5 - key.fractionX();
+            for (int dy = -halfExtent; dy <= halfExtent; dy++) {
+                double y = dy + 0.5 - key.fractionY();
+                for (int dz = -halfExtent; dz <= halfExtent; dz++) {
+                    double z = dz + 0.5 - key.fractionZ();
+                    double distSq = x * x + y * y + z * z;
+
+                    int classification;
+                    if (distSq <= key.squaredRadiusMinusOne()) {
+                        classification = INSIDE;
+                    } else if (distSq <= key.squaredRadius()) {
+                        classification = BETWEEN;
+                    } else if (distSq <= key.squaredShellOuterRadius()) {
+                        classification = ATMOSPHERE;
+                    } else {
+                        classification = BEYOND_SHELL;
+                    }
+
+                    int index = index(dx, dy, dz);
+                    if ((classification & 1) != 0) lowBits.set(index);
+                    if ((classification & 2) != 0) highBits.set(index);
+                    if (classification == INSIDE) {
+                        int column = columnIndex(dx, dz);
+                        insideMinDy[column] = Math.min(insideMinDy[column], dy);
+                        insideMaxDy[column] = Math.max(insideMaxDy[column], dy);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the shared template for a portal centred on the given point.
+     * Cells are addressed relative to {@link #getOrigin(Vec3d)} of the same centre.
+     */
+    public static AtmosphereShell of(Vec3d center, IC_Config icConfig) {
+        Key key = new Key(
+                center.x - MathHelper.floor(center.x),
+                center.y - MathHelper.floor(center.y),
+                center.z - MathHelper.floor(center.z),
+                icConfig.squaredAtmosphereRadiusMinusOne,
+                icConfig.squaredAtmosphereRadius,
+                icConfig.squaredAtmosphereShellOuterRadius
+        );
+        AtmosphereShell shell = TEMPLATES.get(key);
+        if (shell == null) {
+            // Templates only go stale when the config is reloaded, so simply start over if that piles them up.
+            if (TEMPLATES.size() >= MAX_TEMPLATES) TEMPLATES.clear();
+            shell = TEMPLATES.computeIfAbsent(key, AtmosphereShell::new);
+        }
+        return shell;
+    }
+
+    public static BlockPos getOrigin(Vec3d center) {
+        return BlockPos.ofFloored(center);
+    }
+
+    /**
+     * @return one of {@link #INSIDE}, {@link #BETWEEN}, {@link #ATMOSPHERE} or {@link #BEYOND_SHELL}
+     * for the cell at the given offset from the origin.
+     */
+    public int classify(int dx, int dy, int dz) {
+        if (dx < -halfExtent || dx > halfExtent || dy < -halfExtent || dy > halfExtent || dz < -halfExtent || dz > halfExtent) {
+            return BEYOND_SHELL;
+        }
+        int index = index(dx, dy, dz);
+        return (lowBits.get(index) ? 1 : 0) | (highBits.get(index) ? 2 : 0);
+    }
+
+    /**
+     * @return the lowest dy classified as {@link #INSIDE} in the column at the given offset,
+     * greater than {@link #getInsideMaxDy} if the column has no such cell.
+     */
+    public int getInsideMinDy(int dx, int dz) {
+        if (dx < -halfExtent || dx > halfExtent || dz < -halfExtent || dz > halfExtent) return Integer.MAX_VALUE;
+        return insideMinDy[columnIndex(dx, dz)];
+    }
+
+    public int getInsideMaxDy(int dx, int dz) {
+        if (dx < -halfExtent || dx > halfExtent || dz < -halfExtent || dz > halfExtent) return Integer.MIN_VALUE;
+        return insideMaxDy[columnIndex(dx, dz)];
+    }
+
+    private int columnIndex(int dx, int dz) {
+        return (dx + halfExtent) * size + (dz + halfExtent);
+    }
+
+    private int index(int dx, int dy, int dz) {
+        return ((dx + halfExtent) * size + (dy + halfExtent)) * size + (dz + halfExtent);
+    }
+}
@@ -1,93 +1,167 @@
 // --- START OF MODIFIED FILE BlockCache.java ---
 package com.lukarbonite.immersive_serverside.objects;
 
-import it.unimi.dsi.fastutil.ints.*;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.ObjectSet;
+import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.util.math.BlockPos;
-import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.function.BiConsumer;
-import java.util.function.Consumer;
 
+/**
+ * The fake block states sent to one player, stored per chunk section as {@link Block#STATE_IDS} ids
+ * with a bitset of the cells that hold one.
+ * <p>
+ * Not thread safe. The cache belongs to the portal thread, other threads hand their work over with
+ * {@link com.lukarbonite.immersive_serverside.ServersideServer#addPortalTask}.
+ */
 public class BlockCache {
-    public final static int CHUNK_SIZE = 2;
-    public final static int DEFAULT_MAP_SIZE = 16;
-    public final static int DEFAULT_HASHMAP_SIZE = 256;
-    private final Int2ObjectMap<Int2ObjectMap<Long2ObjectMap<BlockState>>> cache = new Int2ObjectOpenHashMap<>(DEFAULT_MAP_SIZE);
+    private static final int SECTION_VOLUME = 4096;
+    // Both arrays are allocated in full with the section, so this is what a section holds however few cells it caches.
+    // The array headers, the section object and its map slot are rounded up, which makes it an upper bound.
+    public static final long BYTES_PER_SECTION = SECTION_VOLUME * 4L + SECTION_VOLUME / 8 + 128;
+
+    private final Long2ObjectMap<Section> sections = new Long2ObjectOpenHashMap<>();
+    // The section of the last lookup, frustum walks hit the same one many times in a row
+    private long lastSectionKey = Long.MIN_VALUE;
+    private Section lastSection;
     private int size = 0;
+    private int lastViewTick;
+    // New sections are refused once this many are cached, see canCache
+    private int sectionLimit = Integer.MAX_VALUE;
+
+    private static class Section {
+        private final int[] stateIds = new int[SECTION_VOLUME];
+        private final long[] occupied = new long[SECTION_VOLUME / 64];
+        private int count;
+        private int lastInView;
+    }
 
-    public synchronized BlockState get(BlockPos p) {
-        Int2ObjectMap<Long2ObjectMap<BlockState>> chunkSlice = cache.get(p.getX() >> CHUNK_SIZE);
-        if (chunkSlice == null) return null;
+    /**
+     * A copy of one cached section that can be read from another thread.
+     */
+    public record SectionSnapshot(int[] stateIds, long[] occupied) {
+        @Nullable
+        public BlockState get(int x, int y, int z) {
+            int index = SectionBitSet.localIndex(x, y, z);
+            if ((occupied[index >>> 6] & (1L << index)) == 0) return null;
+            return Block.STATE_IDS.get(stateIds[index]);
+        }
+    }
 
-        Long2ObjectMap<BlockState> chunk = chunkSlice.get(p.getZ() >> CHUNK_SIZE);
-        if (chunk == null) return null;
-        return chunk.get(p.asLong());
+    @FunctionalInterface
+    public interface SectionVisitor {
+        void visit(long sectionKey, int lastInView);
     }
 
-    public synchronized void put(BlockPos p, BlockState t) {
-        Int2ObjectMap<Long2ObjectMap<BlockState>> chunkSlice = cache.get(p.getX() >> CHUNK_SIZE);
-        if (chunkSlice == null) {
-            chunkSlice = new Int2ObjectOpenHashMap<>(DEFAULT_MAP_SIZE);
-            cache.put(p.getX() >> CHUNK_SIZE, chunkSlice);
+    public BlockState get(BlockPos p) {
+        Section section = getSection(ChunkSectionPos.toLong(p));
+        if (section == null) return null;
+
+        int index = SectionBitSet.localIndex(p.getX(), p.getY(), p.getZ());
+        if ((section.occupied[index >>> 6] & (1L << index)) == 0) return null;
+        return Block.STATE_IDS.get(section.stateIds[index]);
+    }
+
+    public void put(BlockPos p, BlockState t) {
+        long sectionKey = ChunkSectionPos.toLong(p);
+        Section section = getSection(sectionKey);
+        if (section == null) {
+            section = new Section();
+            section.lastInView = lastViewTick;
+            sections.put(sectionKey, section);
+            lastSectionKey = sectionKey;
+            lastSection = section;
         }
 
-        Long2ObjectMap<BlockState> chunk = chunkSlice.get(p.getZ() >> CHUNK_SIZE);
-        if (chunk == null) {
-            chunk = new Long2ObjectOpenHashMap<>(DEFAULT_HASHMAP_SIZE);
-            chunkSlice.put(p.getZ() >> CHUNK_SIZE, chunk);
+        int index = SectionBitSet.localIndex(p.getX(), p.getY(), p.getZ());
+        section.stateIds[index] = Block.getRawIdFromState(t);
+        long bit = 1L << index;
+        if ((section.occupied[index >>> 6] & bit) == 0) {
+            section.occupied[index >>> 6] |= bit;
+            section.count++;
+            size++;
         }
+    }
+
+    public BlockState remove(BlockPos p) {
+        long sectionKey = ChunkSectionPos.toLong(p);
+        Section section = getSection(sectionKey);
+        if (section == null) return null;
+
+        int index = SectionBitSet.localIndex(p.getX(), p.getY(), p.getZ());
+        long bit = 1L << index;
+        if ((section.occupied[index >>> 6] & bit) == 0) return null;
 
-        BlockState v = chunk.put(p.asLong(), t);
-        if (v == null) size++;
+        section.occupied[index >>> 6] &= ~bit;
+        size--;
+        if (--section.count == 0) {
+            removeSection(sectionKey);
+        }
+        return Block.STATE_IDS.get(section.stateIds[index]);
     }
 
-    public synchronized int size() {
+    public int size() {
         return size;
     }
 
+    public int sectionCount() {
+        return sections.size();
+    }
+
+    public long getEstimatedBytes() {
+        return sections.size() * BYTES_PER_SECTION;
+    }
+
     /**
-     * Iterates the entire cache, removing any entry not contained in the provided set.
-     * This is inefficient and should be used sparingly.
-     * @param blocksToKeep The set of blocks that should NOT be purged.
-     * @param onRemove A callback for each removed entry.
+     * Whether the given position can be cached without going over the section limit.
      */
-    public synchronized void purgeAllExcept(Set<BlockPos> blocksToKeep, BiConsumer<BlockPos, BlockState> onRemove) {
-        var sliceIterator = cache.int2ObjectEntrySet().iterator();
-        while (sliceIterator.hasNext()) {
-            var sliceEntry = sliceIterator.next();
-            var cacheSlice = sliceEntry.getValue();
-
-            var mapIterator = cacheSlice.int2ObjectEntrySet().iterator();
-            while (mapIterator.hasNext()) {
-                var mapEntry = mapIterator.next();
-                Long2ObjectMap<BlockState> map = mapEntry.getValue();
-
-                map.long2ObjectEntrySet().removeIf((entry) -> {
-                    BlockPos mapBlockPos = BlockPos.fromLong(entry.getLongKey());
-                    if (blocksToKeep.contains(mapBlockPos)) {
-                        return false; // Don't purge if it's currently in view
-                    }
-                    onRemove.accept(mapBlockPos, entry.getValue());
-                    size--;
-                    return true;
-                });
-
-                if (map.isEmpty()) {
-                    mapIterator.remove();
-                }
-            }
+    public boolean canCache(BlockPos p) {
+        return sections.size() < sectionLimit || getSection(ChunkSectionPos.toLong(p)) != null;
+    }
 
-            if (cacheSlice.isEmpty()) {
-                sliceIterator.remove();
-            }
+    public void setSectionLimit(int sectionLimit) {
+        this.sectionLimit = sectionLimit;
+    }
+
+    /**
+     * Stamps every cached section that holds part of the view with the given tick.
+     */
+    public void markInView(SectionBitSet visible, int tick) {
+        lastViewTick = tick;
+        for (long sectionKey : visible.sections().keySet()) {
+            Section section = sections.get(sectionKey);
+            if (section != null) section.lastInView = tick;
+        }
+    }
+
+    public void forEachSection(SectionVisitor visitor) {
+        for (Long2ObjectMap.Entry<Section> entry : sections.long2ObjectEntrySet()) {
+            visitor.visit(entry.getLongKey(), entry.getValue().lastInView);
+        }
+    }
+
+    @Nullable
+    public SectionSnapshot snapshotSection(long sectionKey) {
+        Section section = sections.get(sectionKey);
+        if (section == null) return null;
+        return new SectionSnapshot(section.stateIds.clone(), section.occupied.clone());
+    }
+
+    /**
+     * Removes a whole section from the cache.
+     * @param onRemove A callback for each removed entry.
+     */
+    public void purgeSection(long sectionKey, BiConsumer<BlockPos, BlockState> onRemove) {
+        Section section = sections.get(sectionKey);
+        if (section == null) return;
+        removeSection(sectionKey);
+        size -= section.count;
+        for (int i = 0; i < section.occupied.length; i++) {
+            forEachBit(sectionKey, i, section.occupied[i], section, onRemove);
         }
     }
 
@@ -96,44 +170,69 @@ public class BlockCache {
      * @param positionsToPurge The set of blocks to remove.
      * @param onRemove A callback for each removed entry.
      */
-    public synchronized void purgePositions(Set<BlockPos> positionsToPurge, BiConsumer<BlockPos, BlockState> onRemove) {
-        for (BlockPos pos : positionsToPurge) {
-            int chunkX = pos.getX() >> CHUNK_SIZE;
-            int chunkZ = pos.getZ() >> CHUNK_SIZE;
-            Int2ObjectMap<Long2ObjectMap<BlockState>> chunkSlice = cache.get(chunkX);
-            if (chunkSlice == null) continue;
-
-            Long2ObjectMap<BlockState> chunk = chunkSlice.get(chunkZ);
-            if (chunk == null) continue;
-
-            BlockState removedState = chunk.remove(pos.asLong());
-            if (removedState != null) {
-                onRemove.accept(pos, removedState);
-                size--;
-                if (chunk.isEmpty()) {
-                    chunkSlice.remove(chunkZ);
-                    if (chunkSlice.isEmpty()) {
-                        cache.remove(chunkX);
-                    }
-                }
+    public void purgePositions(SectionBitSet positionsToPurge, BiConsumer<BlockPos, BlockState> onRemove) {
+        for (Long2ObjectMap.Entry<long[]> entry : positionsToPurge.sections().long2ObjectEntrySet()) {
+            long sectionKey = entry.getLongKey();
+            Section section = sections.get(sectionKey);
+            if (section == null) continue;
+
+            long[] purgeWords = entry.getValue();
+            for (int i = 0; i < purgeWords.length; i++) {
+                long word = section.occupied[i] & purgeWords[i];
+                if (word == 0) continue;
+                section.occupied[i] &= ~word;
+                int removed = Long.bitCount(word);
+                section.count -= removed;
+                size -= removed;
+                forEachBit(sectionKey, i, word, section, onRemove);
+            }
+            if (section.count == 0) {
+                removeSection(sectionKey);
             }
         }
     }
 
+    public void purgeAll(BiConsumer<BlockPos, BlockState> onRemove) {
+        for (Long2ObjectMap.Entry<Section> entry : sections.long2ObjectEntrySet()) {
+            Section section = entry.getValue();
+            for (int i = 0; i < section.occupied.length; i++) {
+                forEachBit(entry.getLongKey(), i, section.occupied[i], section, onRemove);
+            }
+        }
+        sections.clear();
+        lastSectionKey = Long.MIN_VALUE;
+        lastSection = null;
+        size = 0;
+    }
 
-    private void purge(Int2ObjectMap<Long2ObjectMap<BlockState>> v, BiConsumer<BlockPos, BlockState> onRemove) {
-        v.values().forEach((map) -> purge(map, onRemove));
+    private Section getSection(long sectionKey) {
+        if (sectionKey != lastSectionKey) {
+            Section section = sections.get(sectionKey);
+            if (section == null) return null;
+            lastSectionKey = sectionKey;
+            lastSection = section;
+        }
+        return lastSection;
     }
 
-    private void purge(Long2ObjectMap<BlockState> v, BiConsumer<BlockPos, BlockState> onRemove) {
-        size -= v.size();
-        v.forEach((posLong, state) -> onRemove.accept(BlockPos.fromLong(posLong), state));
+    private void removeSection(long sectionKey) {
+        sections.remove(sectionKey);
+        if (sectionKey == lastSectionKey) {
+            lastSectionKey = Long.MIN_VALUE;
+            lastSection = null;
+        }
     }
 
-    public synchronized void purgeAll(BiConsumer<BlockPos, BlockState> onRemove) {
-        cache.values().forEach((slice) -> purge(slice, onRemove));
-        cache.clear();
-        size=0;
+    private static void forEachBit(long sectionKey, int wordIndex, long word, Section section, BiConsumer<BlockPos, BlockState> onRemove) {
+        int baseX = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackX(sectionKey));
+        int baseY = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackY(sectionKey));
+        int baseZ = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackZ(sectionKey));
+        while (word != 0) {
+            int index = (wordIndex << 6) | Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+            BlockPos pos = new BlockPos(baseX + (index & 15), baseY + (index >>> 8), baseZ + ((index >>> 4) & 15));
+            onRemove.accept(pos, Block.STATE_IDS.get(section.stateIds[index]));
+        }
     }
 }
-// --- END OF MODIFIED FILE BlockCache.java ---
\ No newline at end of file
+// --- END OF MODIFIED FILE BlockCache.java ---
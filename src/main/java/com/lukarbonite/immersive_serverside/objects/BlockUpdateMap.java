@@ -1,64 +1,160 @@
 package com.lukarbonite.immersive_serverside.objects;
 
+import com.lukarbonite.immersive_serverside.mixin.ChunkDeltaUpdateS2CPacketInvoker;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.shorts.Short2ObjectMap;
-import it.unimi.dsi.fastutil.shorts.Short2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.shorts.ShortSet;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
+import net.minecraft.network.PacketByteBuf;
 import net.minecraft.network.packet.s2c.play.ChunkDeltaUpdateS2CPacket;
-import net.minecraft.registry.Registry;
-import net.minecraft.registry.RegistryKeys;
-import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.ChunkSectionPos;
-import net.minecraft.world.biome.Biome;
-import net.minecraft.world.chunk.ChunkSection;
 
-public class BlockUpdateMap extends Long2ObjectOpenHashMap<Short2ObjectMap<BlockState>> {
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Block updates to send, grouped by chunk section.
+ * Each update is kept the way {@link ChunkDeltaUpdateS2CPacket} puts it on the wire, the raw state id shifted
+ * above the packed local position, so the packets are encoded straight from these arrays.
+ */
+public class BlockUpdateMap {
+    private static final int LOCAL_POS_BITS = 12;
+    private static final long LOCAL_POS_MASK = (1L << LOCAL_POS_BITS) - 1;
+    private static final int INITIAL_SECTION_CAPACITY = 16;
+
+    private final Long2ObjectMap<Section> sections = new Long2ObjectOpenHashMap<>();
+
+    private static class Section {
+        private long[] updates = new long[INITIAL_SECTION_CAPACITY];
+        private int size;
+        // Which local positions already have an update, so the common case of a new position needs no scan
+        private final long[] present = new long[4096 / 64];
+        // Where the update of each present local position sits in updates, built the first time one is looked up
+        private short[] indices;
+
+        /**
+         * Only valid for local positions that are present.
+         */
+        private int indexOf(short localPos) {
+            if (indices == null) {
+                indices = new short[4096];
+                for (int i = 0; i < size; i++) {
+                    indices[(int) (updates[i] & LOCAL_POS_MASK)] = (short) i;
+                }
+            }
+            return indices[localPos];
+        }
+
+        private void add(short localPos, long update) {
+            present[localPos >>> 6] |= 1L << localPos;
+            if (size == updates.length) {
+                updates = Arrays.copyOf(updates, size * 2);
+            }
+            if (indices != null) {
+                indices[localPos] = (short) size;
+            }
+            updates[size++] = update;
+        }
+    }
+
     public void put(BlockPos p, BlockState t) {
         long cp = getChunkPos(p);
-        Short2ObjectMap<BlockState> map = this.get(cp);
-        if (map == null) {
-            map = new Short2ObjectOpenHashMap<>();
-            this.put(cp, map);
+        Section section = sections.get(cp);
+        if (section == null) {
+            section = new Section();
+            sections.put(cp, section);
         }
-        map.put(ChunkSectionPos.packLocal(p),t);
+
+        short localPos = ChunkSectionPos.packLocal(p);
+        long update = (long) Block.getRawIdFromState(t) << LOCAL_POS_BITS | localPos;
+        if ((section.present[localPos >>> 6] & (1L << localPos)) != 0) {
+            section.updates[section.indexOf(localPos)] = update;
+            return;
+        }
+        section.add(localPos, update);
     }
 
     public BlockState get(BlockPos p) {
-        Short2ObjectMap<BlockState> map = this.get(getChunkPos(p));
-        if (map == null) return null;
-        return map.get(ChunkSectionPos.packLocal(p));
+        Section section = sections.get(getChunkPos(p));
+        if (section == null) return null;
+        short localPos = ChunkSectionPos.packLocal(p);
+        if ((section.present[localPos >>> 6] & (1L << localPos)) == 0) return null;
+        return Block.STATE_IDS.get((int) (section.updates[section.indexOf(localPos)] >>> LOCAL_POS_BITS));
     }
 
-    public void sendTo(ServerPlayerEntity player) {
-        Registry<Biome> biomeRegistry = player.getWorld().getRegistryManager().getOrThrow(RegistryKeys.BIOME);
+    public boolean isEmpty() {
+        return sections.isEmpty();
+    }
 
-        for (Long2ObjectMap.Entry<Short2ObjectMap<BlockState>> entry : this.long2ObjectEntrySet()) {
-            ChunkSectionPos chunkSectionPos = ChunkSectionPos.from(entry.getLongKey());
-            Short2ObjectMap<BlockState> chunkContents = entry.getValue();
+    /**
+     * Returns the number of updates in each chunk column, keyed by {@link ChunkPos#toLong}.
+     */
+    public Long2IntMap getColumnSizes() {
+        Long2IntMap columnSizes = new Long2IntOpenHashMap();
+        for (Long2ObjectMap.Entry<Section> entry : sections.long2ObjectEntrySet()) {
+            long sectionKey = entry.getLongKey();
+            columnSizes.addTo(ChunkPos.toLong(ChunkSectionPos.unpackX(sectionKey), ChunkSectionPos.unpackZ(sectionKey)), entry.getValue().size);
+        }
+        return columnSizes;
+    }
 
-            if (chunkContents.isEmpty()) {
-                continue;
-            }
+    /**
+     * Returns the number of sections with updates in the given chunk column, each of them takes a delta packet.
+     */
+    public int getSectionCount(int chunkX, int chunkZ) {
+        int count = 0;
+        LongIterator iterator = sections.keySet().iterator();
+        while (iterator.hasNext()) {
+            long sectionKey = iterator.nextLong();
+            if (ChunkSectionPos.unpackX(sectionKey) == chunkX && ChunkSectionPos.unpackZ(sectionKey) == chunkZ) count++;
+        }
+        return count;
+    }
 
-            ShortSet positions = chunkContents.keySet();
-            ChunkSection chunkSection = new ChunkSection(biomeRegistry);
-            for (short pos : positions) {
-                chunkSection.setBlockState(
-                        ChunkSectionPos.unpackLocalX(pos),
-                        ChunkSectionPos.unpackLocalY(pos),
-                        ChunkSectionPos.unpackLocalZ(pos),
-                        chunkContents.get(pos)
-                );
+    public void removeColumn(int chunkX, int chunkZ) {
+        LongIterator iterator = sections.keySet().iterator();
+        while (iterator.hasNext()) {
+            long sectionKey = iterator.nextLong();
+            if (ChunkSectionPos.unpackX(sectionKey) == chunkX && ChunkSectionPos.unpackZ(sectionKey) == chunkZ) {
+                iterator.remove();
             }
+        }
+    }
 
-            player.networkHandler.sendPacket(new ChunkDeltaUpdateS2CPacket(chunkSectionPos, positions, chunkSection));
+    /**
+     * Encodes the updates into one delta packet per chunk section.
+     * The packets don't refer back to this map, so they can be sent to any number of players.
+     */
+    public List<ChunkDeltaUpdateS2CPacket> toPackets() {
+        List<ChunkDeltaUpdateS2CPacket> packets = new ArrayList<>(sections.size());
+        if (sections.isEmpty()) return packets;
+
+        // One buffer for all sections, the packet copies the updates out of it while decoding
+        PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
+        for (Long2ObjectMap.Entry<Section> entry : sections.long2ObjectEntrySet()) {
+            Section section = entry.getValue();
+            if (section.size == 0) continue;
+
+            buf.clear();
+            buf.writeLong(entry.getLongKey());
+            buf.writeVarInt(section.size);
+            for (int i = 0; i < section.size; i++) {
+                buf.writeVarLong(section.updates[i]);
+            }
+            packets.add(ChunkDeltaUpdateS2CPacketInvoker.ic$create(buf));
         }
+        buf.release();
+        return packets;
     }
 
     private long getChunkPos(BlockPos p) {
         return ChunkSectionPos.asLong(p.getX() >> 4, p.getY() >> 4, p.getZ() >> 4);
     }
-}
\ No newline at end of file
+}
@@ -3,10 +3,9 @@ package com.lukarbonite.immersive_serverside.objects;
 import it.unimi.dsi.fastutil.ints.*;
 import net.minecraft.util.math.BlockPos;
 
-import static com.lukarbonite.immersive_serverside.objects.BlockCache.CHUNK_SIZE;
-import static com.lukarbonite.immersive_serverside.objects.BlockCache.DEFAULT_MAP_SIZE;
-
 public class Chunk2IntMap {
+    public final static int CHUNK_SIZE = 2;
+    public final static int DEFAULT_MAP_SIZE = 16;
     private final Int2ObjectMap<Int2IntMap> map = new Int2ObjectOpenHashMap<>(DEFAULT_MAP_SIZE);
     private int total = 0;
 
@@ -0,0 +1,113 @@
+package com.lukarbonite.immersive_serverside.objects;
+
+import com.lukarbonite.immersive_serverside.IC_Config;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.util.math.Vec3d;
+
+/**
+ * Extrapolates where a player's eye will be by the time a portal frame reaches their client,
+ * based on their recent movement and the measured latency of their connection.
+ */
+public class EyePredictor {
+    private static final double SMOOTHING = 0.5;
+    private static final long STALE_NANOS = 150_000_000L;
+    // A frame is built on the portal thread and sent from the next server tick.
+    private static final int MAIN_THREAD_HOP_MILLIS = 50;
+    private static final double SPREAD_FACTOR = 0.5;
+    private static final double MIN_PLANE_DISTANCE = 0.5;
+
+    private final IC_Config icConfig;
+
+    private Vec3d lastEyePos;
+    private float lastYaw;
+    private float lastPitch;
+    private long lastChangeNanos;
+    // Blocks and degrees per second
+    private Vec3d velocity = Vec3d.ZERO;
+    private double yawVelocity;
+    private double pitchVelocity;
+
+    private Vec3d predictedEyePos = Vec3d.ZERO;
+    private Vec3d lookVector = Vec3d.ZERO;
+    private double spread;
+
+    public EyePredictor(IC_Config icConfig) {
+        this.icConfig = icConfig;
+    }
+
+    public void update(ServerPlayerEntity player) {
+        final Vec3d eyePos = player.getEyePos();
+        final float yaw = player.getYaw();
+        final float pitch = player.getPitch();
+
+        if (!icConfig.predictiveEye) {
+            this.predictedEyePos = eyePos;
+            this.lookVector = player.getRotationVector();
+            this.spread = 0;
+            this.lastEyePos = null;
+            return;
+        }
+
+        final long now = System.nanoTime();
+        if (lastEyePos == null) {
+            velocity = Vec3d.ZERO;
+            yawVelocity = pitchVelocity = 0;
+            remember(eyePos, yaw, pitch, now);
+        } else if (!eyePos.equals(lastEyePos) || yaw != lastYaw || pitch != lastPitch) {
+            // Movement arrives in bursts with the client's packets, so only sample when something changed.
+            double seconds = (now - lastChangeNanos) / 1.0E9;
+            if (seconds > 0) {
+                Vec3d sample = eyePos.subtract(lastEyePos).multiply(1.0 / seconds);
+                velocity = velocity.multiply(1 - SMOOTHING).add(sample.multiply(SMOOTHING));
+                yawVelocity = yawVelocity * (1 - SMOOTHING) + MathHelper.wrapDegrees(yaw - lastYaw) / seconds * SMOOTHING;
+                pitchVelocity = pitchVelocity * (1 - SMOOTHING) + (pitch - lastPitch) / seconds * SMOOTHING;
+            }
+            remember(eyePos, yaw, pitch, now);
+        } else if (now - lastChangeNanos > STALE_NANOS) {
+            velocity = Vec3d.ZERO;
+            yawVelocity = pitchVelocity = 0;
+        }
+
+        int latencyMillis = Math.max(0, player.networkHandler.getLatency());
+        double lookahead = Math.min(latencyMillis / 2 + MAIN_THREAD_HOP_MILLIS, icConfig.predictionMaxMillis) / 1000.0;
+
+        Vec3d offset = velocity.multiply(lookahead);
+        this.predictedEyePos = eyePos.add(offset);
+        float predictedYaw = (float) (yaw + yawVelocity * lookahead);
+        float predictedPitch = MathHelper.clamp((float) (pitch + pitchVelocity * lookahead), -90.0f, 90.0f);
+        this.lookVector = Vec3d.fromPolar(predictedPitch, predictedYaw);
+        this.spread = offset.length() * SPREAD_FACTOR;
+    }
+
+    private void remember(Vec3d eyePos, float yaw, float pitch, long now) {
+        this.lastEyePos = eyePos;
+        this.lastYaw = yaw;
+        this.lastPitch = pitch;
+        this.lastChangeNanos = now;
+    }
+
+    public Vec3d getPredictedEyePos() {
+        return predictedEyePos;
+    }
+
+    public Vec3d getLookVector() {
+        return lookVector;
+    }
+
+    /**
+     * Returns the origin for a frustum through the given aperture that also covers the positions
+     * around the predicted one. Moving the origin towards the aperture widens the frustum behind it,
+     * so the origin is pulled in by the uncertainty of the prediction.
+     * @param apertureCenter The centre of the portal opening.
+     * @param planeDistance The distance between the predicted eye and the portal plane.
+     */
+    public Vec3d getFrustumOrigin(Vec3d apertureCenter, double planeDistance) {
+        if (spread <= 0) return predictedEyePos;
+        Vec3d toAperture = apertureCenter.subtract(predictedEyePos);
+        double distance = toAperture.length();
+        double pull = Math.min(spread, planeDistance - MIN_PLANE_DISTANCE);
+        if (distance < 1e-7 || pull <= 0) return predictedEyePos;
+        return predictedEyePos.add(toAperture.multiply(pull / distance));
+    }
+}
@@ -0,0 +1,50 @@
+package com.lukarbonite.immersive_serverside.objects;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Vec3d;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently used view frustums, keyed by portal and by the frustum origin snapped to a {@link QuantizedPos}.
+ * Small movements map to the same key, so the planes are only rebuilt once the origin has moved by a grid step.
+ */
+public class FrustumCache {
+    // A frustum holds about a dozen vectors and rectangles, plus its key and map entry
+    public static final long BYTES_PER_FRUSTUM = 1024;
+    private final int maxSize;
+    private final Map<Key, ViewFrustum> frustums;
+
+    // The radius comes from the config, so frustums built before a reload aren't handed out afterwards
+    private record Key(BlockPos lowerLeft, BlockPos upperRight, QuantizedPos origin, double atmosphereRadius) {}
+
+    public FrustumCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.frustums = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, ViewFrustum> eldest) {
+                return size() > FrustumCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the frustum through the given portal, built from the centre of the grid step the origin falls into.
+     */
+    public synchronized ViewFrustum get(Portal portal, Vec3d origin, double atmosphereRadius) {
+        QuantizedPos quantizedOrigin = QuantizedPos.of(origin);
+        return frustums.computeIfAbsent(
+                new Key(portal.getLowerLeft(), portal.getUpperRight(), quantizedOrigin, atmosphereRadius),
+                k -> new ViewFrustum(quantizedOrigin.toVec3d(), portal, atmosphereRadius)
+        );
+    }
+
+    public synchronized int size() {
+        return frustums.size();
+    }
+
+    public synchronized void clear() {
+        frustums.clear();
+    }
+}
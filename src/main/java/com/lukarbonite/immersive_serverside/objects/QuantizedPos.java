@@ -0,0 +1,28 @@
+package com.lukarbonite.immersive_serverside.objects;
+
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.util.math.Vec3d;
+
+/**
+ * A position snapped to a grid of {@link #STEPS_PER_BLOCK} steps per block, for use as a cache key.
+ * Positions inside the same step share a key.
+ */
+public record QuantizedPos(int x, int y, int z) {
+    public static final int STEPS_PER_BLOCK = 16;
+
+    public static QuantizedPos of(Vec3d pos) {
+        return new QuantizedPos(
+                MathHelper.floor(pos.x * STEPS_PER_BLOCK),
+                MathHelper.floor(pos.y * STEPS_PER_BLOCK),
+                MathHelper.floor(pos.z * STEPS_PER_BLOCK)
+        );
+    }
+
+    public Vec3d toVec3d() {
+        return new Vec3d(
+                (x + 0.5) / STEPS_PER_BLOCK,
+                (y + 0.5) / STEPS_PER_BLOCK,
+                (z + 0.5) / STEPS_PER_BLOCK
+        );
+    }
+}
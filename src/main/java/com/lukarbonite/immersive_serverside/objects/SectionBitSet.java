@@ -0,0 +1,187 @@
+package com.lukarbonite.immersive_serverside.objects;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+import java.util.function.LongConsumer;
+
+/**
+ * A set of block positions stored as one 4096-bit bitset per chunk section.
+ * Set operations work on whole 64-bit words, so diffing two frames costs a few hundred word operations per section
+ * instead of hashing every block.
+ * A section is dropped as soon as its last bit clears, so every section in the map holds at least one position.
+ */
+public class SectionBitSet {
+    private static final int WORDS_PER_SECTION = 4096 / 64;
+    // The words plus the array header and its map slot
+    private static final long BYTES_PER_SECTION = WORDS_PER_SECTION * 8L + 48;
+
+    private final Long2ObjectMap<long[]> sections = new Long2ObjectOpenHashMap<>();
+
+    public void add(BlockPos pos) {
+        add(pos.getX(), pos.getY(), pos.getZ());
+    }
+
+    // Decoded in place, callers walking packed positions shouldn't allocate a BlockPos for each of them
+    public void add(long packedPos) {
+        add(BlockPos.unpackLongX(packedPos), BlockPos.unpackLongY(packedPos), BlockPos.unpackLongZ(packedPos));
+    }
+
+    private void add(int x, int y, int z) {
+        long sectionKey = ChunkSectionPos.asLong(x >> 4, y >> 4, z >> 4);
+        long[] words = sections.get(sectionKey);
+        if (words == null) {
+            words = new long[WORDS_PER_SECTION];
+            sections.put(sectionKey, words);
+        }
+        int index = localIndex(x, y, z);
+        words[index >>> 6] |= 1L << index;
+    }
+
+    public void remove(BlockPos pos) {
+        long sectionKey = ChunkSectionPos.toLong(pos);
+        long[] words = sections.get(sectionKey);
+        if (words == null) return;
+        int index = localIndex(pos.getX(), pos.getY(), pos.getZ());
+        words[index >>> 6] &= ~(1L << index);
+        if (words[index >>> 6] == 0 && isZero(words)) {
+            sections.remove(sectionKey);
+        }
+    }
+
+    public boolean contains(BlockPos pos) {
+        return contains(pos.getX(), pos.getY(), pos.getZ());
+    }
+
+    public boolean contains(long packedPos) {
+        return contains(BlockPos.unpackLongX(packedPos), BlockPos.unpackLongY(packedPos), BlockPos.unpackLongZ(packedPos));
+    }
+
+    private boolean contains(int x, int y, int z) {
+        long[] words = sections.get(ChunkSectionPos.asLong(x >> 4, y >> 4, z >> 4));
+        if (words == null) return false;
+        int index = localIndex(x, y, z);
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public void addAll(SectionBitSet other) {
+        for (Long2ObjectMap.Entry<long[]> entry : other.sections.long2ObjectEntrySet()) {
+            long[] words = sections.get(entry.getLongKey());
+            if (words == null) {
+                sections.put(entry.getLongKey(), entry.getValue().clone());
+                continue;
+            }
+            long[] otherWords = entry.getValue();
+            for (int i = 0; i < WORDS_PER_SECTION; i++) {
+                words[i] |= otherWords[i];
+            }
+        }
+    }
+
+    public void removeAll(SectionBitSet other) {
+        if (other == this) {
+            clear();
+            return;
+        }
+        for (Long2ObjectMap.Entry<long[]> entry : other.sections.long2ObjectEntrySet()) {
+            long[] words = sections.get(entry.getLongKey());
+            if (words == null) continue;
+            long[] otherWords = entry.getValue();
+            long any = 0;
+            for (int i = 0; i < WORDS_PER_SECTION; i++) {
+                words[i] &= ~otherWords[i];
+                any |= words[i];
+            }
+            if (any == 0) {
+                sections.remove(entry.getLongKey());
+            }
+        }
+    }
+
+    public boolean intersects(SectionBitSet other) {
+        for (Long2ObjectMap.Entry<long[]> entry : other.sections.long2ObjectEntrySet()) {
+            long[] words = sections.get(entry.getLongKey());
+            if (words == null) continue;
+            long[] otherWords = entry.getValue();
+            for (int i = 0; i < WORDS_PER_SECTION; i++) {
+                if ((words[i] & otherWords[i]) != 0) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the positions in this set that are not in the other one.
+     * For the previous and the current frame, this is the set of blocks that left the view.
+     */
+    public SectionBitSet difference(SectionBitSet other) {
+        SectionBitSet result = new SectionBitSet();
+        for (Long2ObjectMap.Entry<long[]> entry : sections.long2ObjectEntrySet()) {
+            long[] words = entry.getValue();
+            long[] otherWords = other.sections.get(entry.getLongKey());
+            long[] resultWords = new long[WORDS_PER_SECTION];
+            long any = 0;
+            for (int i = 0; i < WORDS_PER_SECTION; i++) {
+                // The bits that changed between the two sets, limited to the ones set here
+                long word = otherWords == null ? words[i] : (words[i] ^ otherWords[i]) & words[i];
+                resultWords[i] = word;
+                any |= word;
+            }
+            if (any != 0) {
+                result.sections.put(entry.getLongKey(), resultWords);
+            }
+        }
+        return result;
+    }
+
+    public long getEstimatedBytes() {
+        return sections.size() * BYTES_PER_SECTION;
+    }
+
+    public boolean isEmpty() {
+        return sections.isEmpty();
+    }
+
+    /**
+     * Calls the consumer with the packed {@link BlockPos} of every position in the set.
+     */
+    public void forEach(LongConsumer consumer) {
+        for (Long2ObjectMap.Entry<long[]> entry : sections.long2ObjectEntrySet()) {
+            long sectionKey = entry.getLongKey();
+            int baseX = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackX(sectionKey));
+            int baseY = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackY(sectionKey));
+            int baseZ = ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackZ(sectionKey));
+            long[] words = entry.getValue();
+            for (int i = 0; i < WORDS_PER_SECTION; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    int index = (i << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    consumer.accept(BlockPos.asLong(baseX + (index & 15), baseY + (index >>> 8), baseZ + ((index >>> 4) & 15)));
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        sections.clear();
+    }
+
+    private static boolean isZero(long[] words) {
+        for (long word : words) {
+            if (word != 0) return false;
+        }
+        return true;
+    }
+
+    Long2ObjectMap<long[]> sections() {
+        return sections;
+    }
+
+    // Y in the top bits, then Z, then X, so a run along X stays inside one word
+    static int localIndex(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+}
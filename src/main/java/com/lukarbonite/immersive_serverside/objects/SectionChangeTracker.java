@@ -0,0 +1,70 @@
+package com.lukarbonite.immersive_serverside.objects;
+
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongMaps;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.World;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers when a block in each chunk section last changed, so portal views can skip re-resolving sections that didn't.
+ * Fed from the server thread through {@code ServerChunkManager.markForUpdate} and chunk loads.
+ * <p>
+ * {@code markForUpdate} only sees updates that are sent to clients (flag 2) in chunks at block ticking level or above.
+ * Changes made without that flag, or in chunks that are loaded but not ticking, are never recorded here;
+ * the periodic full refresh of each portal frame is what catches those.
+ */
+public final class SectionChangeTracker {
+    // Anything older than this is forgotten, and questions about it are answered with "changed"
+    private static final long RETAIN_MILLIS = 60_000;
+    private static final Map<RegistryKey<World>, Long2LongMap> CHANGES = new ConcurrentHashMap<>();
+
+    private SectionChangeTracker() {}
+
+    public static void markChanged(ServerWorld world, BlockPos pos) {
+        CHANGES.computeIfAbsent(world.getRegistryKey(), k -> Long2LongMaps.synchronize(new Long2LongOpenHashMap()))
+                .put(ChunkSectionPos.toLong(pos), System.currentTimeMillis());
+    }
+
+    /**
+     * Marks every section of a chunk that was just loaded, anything resolved while it was missing showed air instead.
+     */
+    public static void markChunkLoaded(ServerWorld world, ChunkPos chunkPos) {
+        Long2LongMap changes = CHANGES.computeIfAbsent(world.getRegistryKey(), k -> Long2LongMaps.synchronize(new Long2LongOpenHashMap()));
+        long now = System.currentTimeMillis();
+        for (int sectionY = world.getBottomSectionCoord(); sectionY <= world.getTopSectionCoord(); sectionY++) {
+            changes.put(ChunkSectionPos.asLong(chunkPos.x, sectionY, chunkPos.z), now);
+        }
+    }
+
+    /**
+     * @return whether a block in the section may have changed at or after the given time.
+     */
+    public static boolean hasChangedSince(ServerWorld world, long sectionKey, long sinceMillis) {
+        if (System.currentTimeMillis() - sinceMillis > RETAIN_MILLIS) return true;
+        Long2LongMap changes = CHANGES.get(world.getRegistryKey());
+        if (changes == null) return false;
+        long changedAt = changes.get(sectionKey);
+        return changedAt != 0 && changedAt >= sinceMillis;
+    }
+
+    public static void prune() {
+        long oldest = System.currentTimeMillis() - RETAIN_MILLIS;
+        for (Long2LongMap changes : CHANGES.values()) {
+            synchronized (changes) {
+                changes.long2LongEntrySet().removeIf(entry -> entry.getLongValue() < oldest);
+            }
+        }
+    }
+
+    public static void clear() {
+        CHANGES.clear();
+    }
+}
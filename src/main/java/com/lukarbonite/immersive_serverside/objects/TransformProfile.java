@@ -7,6 +7,8 @@ import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
 import net.minecraft.util.math.Vec3d;
 
+import java.util.Objects;
+
 public class TransformProfile {
     private final int originalX;
     private final int originalY;
@@ -31,6 +33,20 @@ public class TransformProfile {
         this.rotation = rotation;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof TransformProfile other)) return false;
+        return originalX == other.originalX && originalY == other.originalY && originalZ == other.originalZ
+                && targetX == other.targetX && targetY == other.targetY && targetZ == other.targetZ
+                && rotation == other.rotation;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(originalX, originalY, originalZ, targetX, targetY, targetZ, rotation);
+    }
+
     public Direction.Axis getTargetAxis(Direction.Axis sourceAxis) {
         if (this.rotation == 90 || this.rotation == -90) {
             return sourceAxis == Direction.Axis.X ? Direction.Axis.Z : Direction.Axis.X;
@@ -53,36 +69,44 @@ public class TransformProfile {
     }
 
     public BlockPos transform(BlockPos in) {
-        int relX = in.getX() - originalX;
-        int relZ = in.getZ() - originalZ;
+        return new BlockPos(transformX(in.getX(), in.getZ()), transformYOnly(in.getY()), transformZ(in.getX(), in.getZ()));
+    }
 
-        int newRelX;
-        int newRelZ;
+    /**
+     * Same as {@link #transform(BlockPos)}, but writes the result into {@code out} instead of a new position.
+     */
+    public BlockPos.Mutable transform(BlockPos in, BlockPos.Mutable out) {
+        return out.set(transformX(in.getX(), in.getZ()), transformYOnly(in.getY()), transformZ(in.getX(), in.getZ()));
+    }
 
+    private int transformX(int x, int z) {
+        int relX = x - originalX;
+        int relZ = z - originalZ;
         switch (this.rotation) {
             case 90:
-                newRelX = -relZ;
-                newRelZ = relX;
-                break;
+                return -relZ + targetX;
             case -90:
-                newRelX = relZ;
-                newRelZ = -relX;
-                break;
+                return relZ + targetX;
             case 180:
-                newRelX = -relX;
-                newRelZ = -relZ;
-                break;
+                return -relX + targetX;
             default:
-                newRelX = relX;
-                newRelZ = relZ;
-                break;
+                return relX + targetX;
         }
+    }
 
-        return new BlockPos(
-                newRelX + targetX,
-                (in.getY() - originalY) + targetY,
-                newRelZ + targetZ
-        );
+    private int transformZ(int x, int z) {
+        int relX = x - originalX;
+        int relZ = z - originalZ;
+        switch (this.rotation) {
+            case 90:
+                return relX + targetZ;
+            case -90:
+                return -relX + targetZ;
+            case 180:
+                return -relZ + targetZ;
+            default:
+                return relZ + targetZ;
+        }
     }
 
     public Vec3d transform(Vec3d in) {
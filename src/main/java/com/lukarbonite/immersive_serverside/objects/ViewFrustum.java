@@ -139,12 +139,32 @@ public class ViewFrustum {
      * @param maxY The maximum world Y coordinate to consider.
      */
     public void iterate(Consumer<BlockPos> consumer, int depth, int minY, int maxY) {
+        iterate(consumer, depth, minY, maxY, (x, z, y) -> y);
+    }
+
+    /**
+     * Lets {@link #iterate(Consumer, int, int, int, ColumnFilter)} jump over runs of cells in a vertical column.
+     */
+    @FunctionalInterface
+    public interface ColumnFilter {
+        /**
+         * @return the lowest Y at or above {@code y} that should be visited in the column at {@code x}, {@code z}.
+         */
+        int nextY(int x, int z, int y);
+    }
+
+    /**
+     * Same as {@link #iterate(Consumer, int, int, int)}, but cells the filter jumps over are never visited.
+     * Vertical columns are walked bottom to top, so the filter sees every column as one run.
+     */
+    public void iterate(Consumer<BlockPos> consumer, int depth, int minY, int maxY, ColumnFilter columnFilter) {
         if (leftPlaneNormal == Vec3d.ZERO) return; // Frustum is collapsed, nothing to iterate.
 
         Direction.Axis depthAxis = this.portalPlaneAxis;
         Direction.Axis uAxis, vAxis;
+        // Y is always the inner axis when it is part of the slice
         switch (depthAxis) {
-            case X -> { uAxis = Direction.Axis.Y; vAxis = Direction.Axis.Z; }
+            case X -> { uAxis = Direction.Axis.Z; vAxis = Direction.Axis.Y; }
             case Y -> { uAxis = Direction.Axis.X; vAxis = Direction.Axis.Z; }
             default -> { uAxis = Direction.Axis.X; vAxis = Direction.Axis.Y; }
         }
@@ -200,8 +220,17 @@ public class ViewFrustum {
             // Iterate within the calculated 2D bounds for this slice
             for (int u = clampedStartU; u < clampedEndU; u++) {
                 Util.set(mutablePos, u, uAxis);
-                for (int v = clampedStartV; v < clampedEndV; v++) {
-                    Util.set(mutablePos, v, vAxis);
+                if (vAxis != Direction.Axis.Y) {
+                    for (int v = clampedStartV; v < clampedEndV; v++) {
+                        Util.set(mutablePos, v, vAxis);
+                        consumer.accept(mutablePos);
+                    }
+                    continue;
+                }
+                int x = mutablePos.getX();
+                int z = mutablePos.getZ();
+                for (int y = columnFilter.nextY(x, z, clampedStartV); y < clampedEndV; y = columnFilter.nextY(x, z, y + 1)) {
+                    mutablePos.setY(y);
                     consumer.accept(mutablePos);
                 }
             }
@@ -260,6 +289,42 @@ public class ViewFrustum {
         return pos.subtract(this.portalOrigin).dotProduct(this.portalPlaneNormal) <= 0;
     }
 
+    /**
+     * Checks a batch of points at once, given as separate coordinate arrays.
+     * The planes are read into locals once, instead of through their Vec3d for every point.
+     * @param count The number of points to check, starting at index 0 of each array.
+     * @return A bitmask with bit {@code i % 64} of word {@code i / 64} set if point {@code i} is inside the frustum,
+     * following the same rules as {@link #contains(Vec3d)}.
+     */
+    public long[] containsAll(double[] xs, double[] ys, double[] zs, int count) {
+        long[] result = new long[(count + 63) >>> 6];
+        if (leftPlaneNormal == Vec3d.ZERO) return result; // Frustum is collapsed
+
+        final double ox = origin.x, oy = origin.y, oz = origin.z;
+        final double px = portalOrigin.x, py = portalOrigin.y, pz = portalOrigin.z;
+        final double tx = topPlaneNormal.x, ty = topPlaneNormal.y, tz = topPlaneNormal.z;
+        final double bx = bottomPlaneNormal.x, by = bottomPlaneNormal.y, bz = bottomPlaneNormal.z;
+        final double lx = leftPlaneNormal.x, ly = leftPlaneNormal.y, lz = leftPlaneNormal.z;
+        final double rx = rightPlaneNormal.x, ry = rightPlaneNormal.y, rz = rightPlaneNormal.z;
+        final double nx = portalPlaneNormal.x, ny = portalPlaneNormal.y, nz = portalPlaneNormal.z;
+
+        for (int i = 0; i < count; i++) {
+            double vx = xs[i] - ox, vy = ys[i] - oy, vz = zs[i] - oz;
+            double wx = xs[i] - px, wy = ys[i] - py, wz = zs[i] - pz;
+            boolean inside = (vx * tx + vy * ty + vz * tz <= 0)
+                    & (vx * bx + vy * by + vz * bz <= 0)
+                    & (vx * lx + vy * ly + vz * lz <= 0)
+                    & (vx * rx + vy * ry + vz * rz <= 0)
+                    & (wx * nx + wy * ny + wz * nz <= 0);
+            result[i >>> 6] |= (inside ? 1L : 0L) << (i & 63);
+        }
+        return result;
+    }
+
+    public static boolean isSet(long[] mask, int index) {
+        return (mask[index >>> 6] & (1L << (index & 63))) != 0;
+    }
+
     /**
      * Checks if a given Vec3d position is inside the four side planes of the frustum, ignoring the near plane.
      * This is useful for culling objects on the same side of the portal as the player.
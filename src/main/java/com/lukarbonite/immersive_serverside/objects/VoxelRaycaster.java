@@ -0,0 +1,66 @@
+package com.lukarbonite.immersive_serverside.objects;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.util.math.Vec3d;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.Predicate;
+
+/**
+ * Walks the block grid along a segment, visiting every cell the segment passes through in order.
+ * Unlike the vanilla raycast this only looks at block states, so it needs no collision shapes or hit results.
+ */
+public final class VoxelRaycaster {
+    private VoxelRaycaster() {}
+
+    /**
+     * Returns the first cell from {@code start} to {@code end} whose state matches, or null if there is none.
+     * The cell containing {@code start} is checked as well.
+     */
+    @Nullable
+    public static BlockPos findFirst(AsyncWorldView worldView, Vec3d start, Vec3d end, Predicate<BlockState> stopAt) {
+        int x = MathHelper.floor(start.x);
+        int y = MathHelper.floor(start.y);
+        int z = MathHelper.floor(start.z);
+        final int endX = MathHelper.floor(end.x);
+        final int endY = MathHelper.floor(end.y);
+        final int endZ = MathHelper.floor(end.z);
+
+        final double dx = end.x - start.x;
+        final double dy = end.y - start.y;
+        final double dz = end.z - start.z;
+        final int stepX = (int) Math.signum(dx);
+        final int stepY = (int) Math.signum(dy);
+        final int stepZ = (int) Math.signum(dz);
+
+        // Distance along the segment, as a fraction of it, to the next cell boundary and between two boundaries on each axis
+        final double deltaX = stepX == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dx);
+        final double deltaY = stepY == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dy);
+        final double deltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : 1.0 / Math.abs(dz);
+        double nextX = stepX == 0 ? Double.POSITIVE_INFINITY : deltaX * (stepX > 0 ? x + 1 - start.x : start.x - x);
+        double nextY = stepY == 0 ? Double.POSITIVE_INFINITY : deltaY * (stepY > 0 ? y + 1 - start.y : start.y - y);
+        double nextZ = stepZ == 0 ? Double.POSITIVE_INFINITY : deltaZ * (stepZ > 0 ? z + 1 - start.z : start.z - z);
+
+        final BlockPos.Mutable mutablePos = new BlockPos.Mutable();
+        int remainingCells = Math.abs(endX - x) + Math.abs(endY - y) + Math.abs(endZ - z) + 1;
+        while (remainingCells-- > 0) {
+            if (stopAt.test(worldView.getBlock(mutablePos.set(x, y, z)))) {
+                return mutablePos.toImmutable();
+            }
+
+            if (nextX < nextY && nextX < nextZ) {
+                x += stepX;
+                nextX += deltaX;
+            } else if (nextY < nextZ) {
+                y += stepY;
+                nextY += deltaY;
+            } else {
+                z += stepZ;
+                nextZ += deltaZ;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,169 @@
+package com.lukarbonite.immersive_serverside.rendering;
+
+import com.lukarbonite.immersive_serverside.mixin.ChunkDataAccessor;
+import com.lukarbonite.immersive_serverside.objects.BlockCache;
+import com.lukarbonite.immersive_serverside.objects.BlockUpdateMap;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import net.minecraft.block.BlockState;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.network.packet.s2c.play.ChunkDataS2CPacket;
+import net.minecraft.network.packet.s2c.play.LightData;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.WorldChunk;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends a chunk column as one chunk data packet instead of block deltas when a frame changes most of it,
+ * like the first reveal of a deep view. The client then rebuilds the column once instead of applying every block.
+ * <p>
+ * The packet replaces the whole column on the client, so it carries every fake block the player currently sees
+ * in that column, not just the ones that changed this frame.
+ */
+public class DenseColumnEncoder {
+    // A delta update is a varlong of the state id above the local position, which takes about four bytes
+    private static final int BYTES_PER_DELTA_UPDATE = 4;
+    // The section position and the update count in front of every delta packet
+    private static final int BYTES_PER_DELTA_SECTION = 11;
+    // The client sets every delta block on its own, queues a light check for it and marks its section for a rebuild,
+    // while a chunk packet arrives with its light and is swapped in at once. That extra work is weighed as 16 times
+    // the update's own bytes. This is not measured, which is why denseColumnThreshold is off by default.
+    // A typical overworld column with its light is around 150 KB, so it takes over from about 2,200 updates,
+    // roughly half a section.
+    private static final int CLIENT_BYTES_PER_DELTA_UPDATE = BYTES_PER_DELTA_UPDATE * 16;
+
+    /**
+     * The cached fake states of a column, taken on the portal thread for the main thread to build the packet from.
+     */
+    public record Column(int x, int z, int updateCount, int changedSections, int minSectionY, BlockCache.SectionSnapshot[] sections) {}
+
+    /**
+     * Picks the columns with at least {@code threshold} updates in this frame and snapshots their cached states.
+     * Must be called from the portal thread, after the cache was updated for the frame.
+     */
+    public static List<Column> findDenseColumns(BlockUpdateMap blockUpdates, BlockCache blockCache, ServerWorld world, int threshold) {
+        List<Column> columns = new ArrayList<>();
+        if (threshold <= 0) return columns;
+
+        int minSectionY = world.getBottomSectionCoord();
+        int maxSectionY = world.getTopSectionCoord();
+        for (Long2IntMap.Entry entry : blockUpdates.getColumnSizes().long2IntEntrySet()) {
+            if (entry.getIntValue() < threshold) continue;
+
+            int x = ChunkPos.getPackedX(entry.getLongKey());
+            int z = ChunkPos.getPackedZ(entry.getLongKey());
+            BlockCache.SectionSnapshot[] sections = new BlockCache.SectionSnapshot[maxSectionY - minSectionY + 1];
+            for (int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+                sections[sectionY - minSectionY] = blockCache.snapshotSection(ChunkSectionPos.asLong(x, sectionY, z));
+            }
+            columns.add(new Column(x, z, entry.getIntValue(), blockUpdates.getSectionCount(x, z), minSectionY, sections));
+        }
+        return columns;
+    }
+
+    /**
+     * Encodes the dense columns that are cheaper as a chunk packet and drops their updates from the delta map.
+     * Columns that can't be replaced safely keep their deltas. Must be called from the main thread, and the packets
+     * have to reach the client before the deltas.
+     */
+    public static List<ChunkDataS2CPacket> encodeDenseColumns(ServerPlayerEntity player, ServerWorld world, List<Column> columns, BlockUpdateMap blockUpdates) {
+        List<ChunkDataS2CPacket> packets = new ArrayList<>();
+        // The snapshots belong to the world the frame was rendered in
+        if (columns.isEmpty() || player.getWorld() != world) return packets;
+        for (Column column : columns) {
+            ChunkDataS2CPacket packet = encode(player, world, column);
+            if (packet == null) continue;
+            packets.add(packet);
+            blockUpdates.removeColumn(column.x(), column.z());
+        }
+        return packets;
+    }
+
+    @Nullable
+    private static ChunkDataS2CPacket encode(ServerPlayerEntity player, ServerWorld world, Column column) {
+        // Only replace columns the client has and keeps, anything else would leave a chunk behind that vanilla never unloads
+        long chunkKey = ChunkPos.toLong(column.x(), column.z());
+        if (!player.getChunkFilter().isWithinDistance(column.x(), column.z()) || player.networkHandler.chunkDataSender.isInNextBatch(chunkKey)) {
+            return null;
+        }
+        WorldChunk chunk = world.getChunkManager().getWorldChunk(column.x(), column.z());
+        if (chunk == null) return null;
+
+        // Block entities only come with the packet's own list, so columns where they'd be lost or misplaced keep their deltas
+        for (BlockPos blockEntityPos : chunk.getBlockEntityPositions()) {
+            if (getCachedState(column, blockEntityPos.getX(), blockEntityPos.getY(), blockEntityPos.getZ()) != null) return null;
+        }
+
+        ChunkSection[] realSections = chunk.getSectionArray();
+        ChunkSection[] shownSections = new ChunkSection[realSections.length];
+        for (int i = 0; i < realSections.length; i++) {
+            ChunkSection section = realSections[i];
+            BlockCache.SectionSnapshot snapshot = getSnapshot(column, chunk.sectionIndexToCoord(i));
+            if (snapshot == null) {
+                shownSections[i] = section;
+            } else {
+                ChunkSection copy = new ChunkSection(section.getBlockStateContainer().copy(), section.getBiomeContainer().slice());
+                for (int y = 0; y < 16; y++) {
+                    for (int z = 0; z < 16; z++) {
+                        for (int x = 0; x < 16; x++) {
+                            BlockState cachedState = snapshot.get(x, y, z);
+                            if (cachedState == null) continue;
+                            if (cachedState.hasBlockEntity()) return null;
+                            copy.setBlockState(x, y, z, cachedState, false);
+                        }
+                    }
+                }
+                shownSections[i] = copy;
+            }
+        }
+
+        PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer());
+        for (ChunkSection section : shownSections) {
+            section.toPacket(buf);
+        }
+        byte[] sectionsData = new byte[buf.readableBytes()];
+        buf.readBytes(sectionsData);
+        buf.release();
+
+        // Only the light the packet really carries counts, sections without light arrays are sent as empty bits
+        ChunkDataS2CPacket packet = new ChunkDataS2CPacket(chunk, world.getLightingProvider(), null, null);
+        LightData lightData = packet.getLightData();
+        long fullCost = sectionsData.length + getNibbleBytes(lightData.getSkyNibbles()) + getNibbleBytes(lightData.getBlockNibbles());
+        long deltaCost = (long) column.updateCount() * (BYTES_PER_DELTA_UPDATE + CLIENT_BYTES_PER_DELTA_UPDATE)
+                + (long) column.changedSections() * BYTES_PER_DELTA_SECTION;
+        if (fullCost >= deltaCost) return null;
+
+        ((ChunkDataAccessor) packet.getChunkData()).ic$setSectionsData(sectionsData);
+        return packet;
+    }
+
+    private static long getNibbleBytes(List<byte[]> nibbles) {
+        long bytes = 0;
+        for (byte[] nibble : nibbles) {
+            bytes += nibble.length;
+        }
+        return bytes;
+    }
+
+    @Nullable
+    private static BlockCache.SectionSnapshot getSnapshot(Column column, int sectionY) {
+        int index = sectionY - column.minSectionY();
+        if (index < 0 || index >= column.sections().length) return null;
+        return column.sections()[index];
+    }
+
+    @Nullable
+    private static BlockState getCachedState(Column column, int x, int y, int z) {
+        BlockCache.SectionSnapshot snapshot = getSnapshot(column, ChunkSectionPos.getSectionCoord(y));
+        if (snapshot == null) return null;
+        return snapshot.get(x & 15, y & 15, z & 15);
+    }
+}
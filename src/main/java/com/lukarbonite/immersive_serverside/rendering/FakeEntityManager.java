@@ -1,6 +1,7 @@
 package com.lukarbonite.immersive_serverside.rendering;
 
 import com.lukarbonite.immersive_serverside.mixin.EntitySetHeadYawS2CPacketAccessor;
+import com.lukarbonite.immersive_serverside.objects.FrustumCache;
 import com.lukarbonite.immersive_serverside.objects.Portal;
 import com.lukarbonite.immersive_serverside.objects.TransformProfile;
 import com.lukarbonite.immersive_serverside.objects.ViewFrustum;
@@ -18,7 +19,6 @@ import net.minecraft.network.listener.ClientPlayPacketListener;
 import net.minecraft.network.packet.Packet;
 import net.minecraft.network.packet.s2c.play.*;
 import net.minecraft.server.network.ServerPlayerEntity;
-import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.Vec3d;
 
@@ -80,26 +80,43 @@ public class FakeEntityManager {
         entitiesToUpdateOnMainThread.clear();
     }
 
-    public List<Packet<?>> process(Map<UUID, Entity> destinationEntityMap, List<Portal> portalsToProcess, Map<BlockPos, ViewFrustum> entityFrustumCache) {
+    public List<Packet<?>> process(Map<UUID, Entity> destinationEntityMap, List<Portal> portalsToProcess, FrustumCache entityFrustumCache) {
         List<Packet<?>> packetsToSend = new ArrayList<>();
         final List<Packet<? super ClientPlayPacketListener>> bundledPackets = new ArrayList<>();
         Map<UUID, Entity> visibleRealEntities = new HashMap<>();
         Map<UUID, Portal> entityPortalContext = new HashMap<>();
 
-        for (Entity realEntity : destinationEntityMap.values()) {
-            for (Portal portal : portalsToProcess) {
-                TransformProfile transformProfile = portal.getTransformProfile();
-                if (transformProfile == null) continue;
-                ViewFrustum viewFrustum = entityFrustumCache.computeIfAbsent(
-                        portal.getLowerLeft(),
-                        k -> new ViewFrustum(player.getEyePos(), portal)
-                );
-                if (viewFrustum.contains(transformProfile.untransform(realEntity.getPos()))) {
+        // Each portal checks all entities that no earlier portal claimed in one batch, so the first portal that sees an entity keeps it.
+        List<Entity> unclaimedEntities = new ArrayList<>(destinationEntityMap.values());
+        double[] xs = new double[unclaimedEntities.size()];
+        double[] ys = new double[unclaimedEntities.size()];
+        double[] zs = new double[unclaimedEntities.size()];
+        for (Portal portal : portalsToProcess) {
+            if (unclaimedEntities.isEmpty()) break;
+            TransformProfile transformProfile = portal.getTransformProfile();
+            if (transformProfile == null) continue;
+            ViewFrustum viewFrustum = entityFrustumCache.get(portal, player.getEyePos(), 0);
+
+            int count = unclaimedEntities.size();
+            for (int i = 0; i < count; i++) {
+                Vec3d untransformedPos = transformProfile.untransform(unclaimedEntities.get(i).getPos());
+                xs[i] = untransformedPos.x;
+                ys[i] = untransformedPos.y;
+                zs[i] = untransformedPos.z;
+            }
+            long[] inFrustum = viewFrustum.containsAll(xs, ys, zs, count);
+
+            List<Entity> stillUnclaimed = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Entity realEntity = unclaimedEntities.get(i);
+                if (ViewFrustum.isSet(inFrustum, i)) {
                     visibleRealEntities.put(realEntity.getUuid(), realEntity);
                     entityPortalContext.put(realEntity.getUuid(), portal);
-                    break;
+                } else {
+                    stillUnclaimed.add(realEntity);
                 }
             }
+            unclaimedEntities = stillUnclaimed;
         }
 
         boolean addedNew;
@@ -0,0 +1,179 @@
+package com.lukarbonite.immersive_serverside.rendering;
+
+import com.lukarbonite.immersive_serverside.IC_Config;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.block.BlockState;
+import net.minecraft.entity.EntityType;
+import net.minecraft.entity.data.DataTracker;
+import net.minecraft.entity.decoration.DisplayEntity;
+import net.minecraft.network.packet.Packet;
+import net.minecraft.network.packet.s2c.play.EntitiesDestroyS2CPacket;
+import net.minecraft.network.packet.s2c.play.EntitySpawnS2CPacket;
+import net.minecraft.network.packet.s2c.play.EntityTrackerUpdateS2CPacket;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.math.AffineTransformation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Vec3d;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Shows distant portal geometry as a few scaled block display entities instead of thousands of fake blocks.
+ * Runs of equal destination blocks are greedy-meshed into boxes, and each box becomes one display entity.
+ */
+public class ImpostorRenderer {
+    private static final int MAX_BOX_SIZE = 16;
+
+    private final ServerPlayerEntity player;
+    private final IC_Config icConfig;
+
+    private final Map<Box, Integer> shownBoxes = new HashMap<>();
+    // Ids of destroyed boxes are handed out again, so the ids in use stay within maxImpostorEntities of the start
+    private final IntArrayList freeEntityIds = new IntArrayList();
+    private int nextImpostorEntityId = -5000000;
+
+    public record Box(BlockPos min, int sizeX, int sizeY, int sizeZ, BlockState state) {
+        public int volume() {
+            return sizeX * sizeY * sizeZ;
+        }
+
+        public void forEachPos(Consumer<BlockPos> consumer) {
+            BlockPos.Mutable mutablePos = new BlockPos.Mutable();
+            for (int x = 0; x < sizeX; x++) {
+                for (int y = 0; y < sizeY; y++) {
+                    for (int z = 0; z < sizeZ; z++) {
+                        consumer.accept(mutablePos.set(min.getX() + x, min.getY() + y, min.getZ() + z));
+                    }
+                }
+            }
+        }
+    }
+
+    public ImpostorRenderer(ServerPlayerEntity player, IC_Config icConfig) {
+        this.player = player;
+        this.icConfig = icConfig;
+    }
+
+    public boolean isCleanupNeeded() {
+        return !shownBoxes.isEmpty();
+    }
+
+    public void purge(List<Packet<?>> packetList) {
+        if (!shownBoxes.isEmpty()) {
+            packetList.add(new EntitiesDestroyS2CPacket(shownBoxes.values().stream().mapToInt(i -> i).toArray()));
+            freeEntityIds.addAll(shownBoxes.values());
+            shownBoxes.clear();
+        }
+    }
+
+    /**
+     * Greedily merges cells of equal state into boxes, first along X, then Z, then Y.
+     * @param cells Packed block positions and the state that should be shown there.
+     */
+    public static List<Box> mesh(Long2ObjectMap<BlockState> cells) {
+        List<Box> boxes = new ArrayList<>();
+        if (cells.isEmpty()) return boxes;
+
+        List<BlockPos> positions = new ArrayList<>(cells.size());
+        for (long packedPos : cells.keySet()) {
+            positions.add(BlockPos.fromLong(packedPos));
+        }
+        positions.sort(Comparator.comparingInt(BlockPos::getY).thenComparingInt(BlockPos::getZ).thenComparingInt(BlockPos::getX));
+
+        LongSet consumed = new LongOpenHashSet(cells.size());
+        for (BlockPos start : positions) {
+            if (consumed.contains(start.asLong())) continue;
+            BlockState state = cells.get(start.asLong());
+            int x = start.getX(), y = start.getY(), z = start.getZ();
+
+            int sizeX = 1;
+            while (sizeX < MAX_BOX_SIZE && isFree(cells, consumed, state, x + sizeX, y, z, 1, 1)) sizeX++;
+            int sizeZ = 1;
+            while (sizeZ < MAX_BOX_SIZE && isFree(cells, consumed, state, x, y, z + sizeZ, sizeX, 1)) sizeZ++;
+            int sizeY = 1;
+            while (sizeY < MAX_BOX_SIZE && isFree(cells, consumed, state, x, y + sizeY, z, sizeX, sizeZ)) sizeY++;
+
+            for (int dx = 0; dx < sizeX; dx++) {
+                for (int dy = 0; dy < sizeY; dy++) {
+                    for (int dz = 0; dz < sizeZ; dz++) {
+                        consumed.add(BlockPos.asLong(x + dx, y + dy, z + dz));
+                    }
+                }
+            }
+            boxes.add(new Box(start, sizeX, sizeY, sizeZ, state));
+        }
+        return boxes;
+    }
+
+    // Checks a horizontal sizeX * sizeZ layer starting at the given position
+    private static boolean isFree(Long2ObjectMap<BlockState> cells, LongSet consumed, BlockState state, int x, int y, int z, int sizeX, int sizeZ) {
+        for (int dx = 0; dx < sizeX; dx++) {
+            for (int dz = 0; dz < sizeZ; dz++) {
+                long packedPos = BlockPos.asLong(x + dx, y, z + dz);
+                if (cells.get(packedPos) != state || consumed.contains(packedPos)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Spawns display entities for new boxes and removes the ones for boxes that are gone.
+     * Boxes that didn't change are left alone.
+     */
+    public void update(List<Box> boxes, List<Packet<?>> packets) {
+        Set<Box> wantedBoxes = new HashSet<>(boxes);
+
+        List<Integer> idsToDestroy = new ArrayList<>();
+        Iterator<Map.Entry<Box, Integer>> iterator = shownBoxes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Box, Integer> entry = iterator.next();
+            if (!wantedBoxes.contains(entry.getKey())) {
+                idsToDestroy.add(entry.getValue());
+                freeEntityIds.add(entry.getValue().intValue());
+                iterator.remove();
+            }
+        }
+        if (!idsToDestroy.isEmpty()) {
+            packets.add(new EntitiesDestroyS2CPacket(idsToDestroy.stream().mapToInt(i -> i).toArray()));
+        }
+
+        for (Box box : wantedBoxes) {
+            if (shownBoxes.containsKey(box)) continue;
+            int id = freeEntityIds.isEmpty() ? nextImpostorEntityId-- : freeEntityIds.popInt();
+            shownBoxes.put(box, id);
+            spawn(id, box, packets);
+        }
+    }
+
+    private void spawn(int id, Box box, List<Packet<?>> packets) {
+        BlockPos min = box.min();
+        packets.add(new EntitySpawnS2CPacket(id, UUID.randomUUID(), min.getX(), min.getY(), min.getZ(), 0, 0, EntityType.BLOCK_DISPLAY, 0, Vec3d.ZERO, 0));
+
+        DisplayEntity.BlockDisplayEntity tempDisplay = new DisplayEntity.BlockDisplayEntity(EntityType.BLOCK_DISPLAY, player.getWorld());
+        tempDisplay.setBlockState(box.state());
+        tempDisplay.setDisplayWidth(Math.max(box.sizeX(), box.sizeZ()));
+        tempDisplay.setDisplayHeight(box.sizeY());
+        tempDisplay.setViewRange(icConfig.renderDistance * 16.0f + icConfig.portalDepth);
+        tempDisplay.setTransformation(new AffineTransformation(
+                new Vector3f(0.0f, 0.0f, 0.0f),
+                new Quaternionf(),
+                new Vector3f(box.sizeX(), box.sizeY(), box.sizeZ()),
+                new Quaternionf()
+        ));
+        tempDisplay.setInterpolationDuration(0);
+        tempDisplay.setStartInterpolation(0);
+
+        List<DataTracker.SerializedEntry<?>> trackedValues = tempDisplay.getDataTracker().getChangedEntries();
+        if (trackedValues != null && !trackedValues.isEmpty()) {
+            packets.add(new EntityTrackerUpdateS2CPacket(id, trackedValues));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.lukarbonite.immersive_serverside.rendering;
+
+import com.lukarbonite.immersive_serverside.objects.SectionBitSet;
+import com.lukarbonite.immersive_serverside.objects.SectionChangeTracker;
+import com.lukarbonite.immersive_serverside.objects.TransformProfile;
+import com.lukarbonite.immersive_serverside.objects.ViewFrustum;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.minecraft.block.BlockState;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+/**
+ * What one portal's pass produced in a frame, so the next pass only has to redo the cells that entered the view
+ * or whose sections changed.
+ */
+public class PortalFrame {
+    final ViewFrustum frustum;
+    final TransformProfile transformProfile;
+    // The last frame every cell was resolved from scratch
+    final int fullRefreshFrame;
+    // Every settled cell reflects the world as it was at this time
+    long resolvedAtMillis;
+    // False if cells were left out because of the reveal budget, the view cone or a missing chunk
+    boolean complete = true;
+
+    // Cells this portal claimed, added to the view and lit
+    final SectionBitSet walked = new SectionBitSet();
+    final SectionBitSet inView = new SectionBitSet();
+    final SectionBitSet lit = new SectionBitSet();
+    // Cells that were resolved and can be kept as long as their sections don't change
+    final SectionBitSet settled = new SectionBitSet();
+    final Long2ObjectMap<BlockState> impostors = new Long2ObjectOpenHashMap<>();
+    final LongSet sourceSections = new LongOpenHashSet();
+    final LongSet destinationSections = new LongOpenHashSet();
+
+    PortalFrame(ViewFrustum frustum, TransformProfile transformProfile, int fullRefreshFrame, long resolvedAtMillis) {
+        this.frustum = frustum;
+        this.transformProfile = transformProfile;
+        this.fullRefreshFrame = fullRefreshFrame;
+        this.resolvedAtMillis = resolvedAtMillis;
+    }
+
+    public long getEstimatedBytes() {
+        return walked.getEstimatedBytes() + inView.getEstimatedBytes() + lit.getEstimatedBytes() + settled.getEstimatedBytes()
+                + impostors.size() * 32L + (sourceSections.size() + destinationSections.size()) * 16L;
+    }
+
+    void recordSections(BlockPos pos, BlockPos transformedPos) {
+        sourceSections.add(ChunkSectionPos.toLong(pos));
+        destinationSections.add(ChunkSectionPos.toLong(transformedPos));
+    }
+
+    boolean hasChangedSections(ServerWorld sourceWorld, ServerWorld destinationWorld) {
+        return anyChanged(sourceWorld, sourceSections) || anyChanged(destinationWorld, destinationSections);
+    }
+
+    private boolean anyChanged(ServerWorld world, LongSet sections) {
+        LongIterator iterator = sections.iterator();
+        while (iterator.hasNext()) {
+            if (SectionChangeTracker.hasChangedSince(world, iterator.nextLong(), resolvedAtMillis)) return true;
+        }
+        return false;
+    }
+}
@@ -7,6 +7,9 @@ import com.lukarbonite.immersive_serverside.mixin.LightUpdateS2CPacketInvoker;
 import com.lukarbonite.immersive_serverside.objects.AsyncWorldView;
 import com.lukarbonite.immersive_serverside.objects.TransformProfile;
 import com.mojang.datafixers.util.Pair;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import io.netty.buffer.Unpooled;
 import net.minecraft.network.PacketByteBuf;
 import net.minecraft.network.packet.Packet;
@@ -29,51 +32,60 @@ import java.util.stream.Collectors;
  */
 public class PortalLightingManager {
 
-    public static List<Packet<?>> calculateLighting(Map<BlockPos, TransformProfile> blockToProfileMap, AsyncWorldView sourceView, AsyncWorldView destinationView, Map<ChunkSectionPos, Pair<ChunkNibbleArray, ChunkNibbleArray>> outSectionLightData) {
+    public static List<Packet<?>> calculateLighting(Long2ObjectMap<TransformProfile> blockToProfileMap, AsyncWorldView sourceView, AsyncWorldView destinationView, Map<ChunkSectionPos, Pair<ChunkNibbleArray, ChunkNibbleArray>> outSectionLightData) {
         List<Packet<?>> packetsToSend = new ArrayList<>();
         final ServerWorld sourceWorld = sourceView.getWorld();
         final ServerWorld destWorld = destinationView.getWorld();
         final ServerLightingProvider sourceLightProvider = sourceWorld.getChunkManager().getLightingProvider();
         final LightingProviderAccessor lightProviderAccessor = (LightingProviderAccessor) sourceLightProvider;
 
-        for (BlockPos sourcePos : blockToProfileMap.keySet()) {
-            final TransformProfile profile = blockToProfileMap.get(sourcePos);
-            if (profile == null) continue;
+        // The cells are visited as packed positions, so only the sections get a ChunkSectionPos
+        final Long2ObjectMap<Pair<ChunkNibbleArray, ChunkNibbleArray>> lightArraysBySection = new Long2ObjectOpenHashMap<>();
+        final BlockPos.Mutable sourcePos = new BlockPos.Mutable();
+        final BlockPos.Mutable transformedPos = new BlockPos.Mutable();
 
-            final ChunkSectionPos sourceSectionPos = ChunkSectionPos.from(sourcePos);
-            final Pair<ChunkNibbleArray, ChunkNibbleArray> lightArrays = outSectionLightData.computeIfAbsent(
-                    sourceSectionPos,
-                    (pos) -> {
-                        ChunkLightProvider<?, ?> skyLightProvider = lightProviderAccessor.ic$getSkyLightProvider();
-                        ChunkLightProvider<?, ?> blockLightProvider = lightProviderAccessor.ic$getBlockLightProvider();
-
-                        ChunkNibbleArray sky = null;
-                        if (skyLightProvider != null) {
-                            LightStorageAccessor skyAccessor = (LightStorageAccessor) ((ChunkLightProviderAccessor) skyLightProvider).ic$getLightStorage();
-                            sky = skyAccessor.ic$getLightSection(pos.asLong());
-                        }
+        for (Long2ObjectMap.Entry<TransformProfile> entry : Long2ObjectMaps.fastIterable(blockToProfileMap)) {
+            final TransformProfile profile = entry.getValue();
+            if (profile == null) continue;
 
-                        ChunkNibbleArray block = null;
-                        if (blockLightProvider != null) {
-                            LightStorageAccessor blockAccessor = (LightStorageAccessor) ((ChunkLightProviderAccessor) blockLightProvider).ic$getLightStorage();
-                            block = blockAccessor.ic$getLightSection(pos.asLong());
+            sourcePos.set(entry.getLongKey());
+            final long sectionKey = ChunkSectionPos.toLong(sourcePos);
+            Pair<ChunkNibbleArray, ChunkNibbleArray> lightArrays = lightArraysBySection.get(sectionKey);
+            if (lightArrays == null) {
+                lightArrays = outSectionLightData.computeIfAbsent(
+                        ChunkSectionPos.from(sectionKey),
+                        (pos) -> {
+                            ChunkLightProvider<?, ?> skyLightProvider = lightProviderAccessor.ic$getSkyLightProvider();
+                            ChunkLightProvider<?, ?> blockLightProvider = lightProviderAccessor.ic$getBlockLightProvider();
+
+                            ChunkNibbleArray sky = null;
+                            if (skyLightProvider != null) {
+                                LightStorageAccessor skyAccessor = (LightStorageAccessor) ((ChunkLightProviderAccessor) skyLightProvider).ic$getLightStorage();
+                                sky = skyAccessor.ic$getLightSection(pos.asLong());
+                            }
+
+                            ChunkNibbleArray block = null;
+                            if (blockLightProvider != null) {
+                                LightStorageAccessor blockAccessor = (LightStorageAccessor) ((ChunkLightProviderAccessor) blockLightProvider).ic$getLightStorage();
+                                block = blockAccessor.ic$getLightSection(pos.asLong());
+                            }
+
+                            return Pair.of(
+                                    sky != null ? sky.copy() : new ChunkNibbleArray(),
+                                    block != null ? block.copy() : new ChunkNibbleArray()
+                            );
                         }
+                );
+                lightArraysBySection.put(sectionKey, lightArrays);
+            }
 
-                        return Pair.of(
-                                sky != null ? sky.copy() : new ChunkNibbleArray(),
-                                block != null ? block.copy() : new ChunkNibbleArray()
-                        );
-                    }
-            );
-
-            final BlockPos transformedPos = profile.transform(sourcePos);
+            profile.transform(sourcePos, transformedPos);
             final int skyLight = destWorld.getLightLevel(LightType.SKY, transformedPos);
             final int blockLight = destWorld.getLightLevel(LightType.BLOCK, transformedPos);
 
-            final short packedLocalPos = ChunkSectionPos.packLocal(sourcePos);
-            final int localX = ChunkSectionPos.unpackLocalX(packedLocalPos);
-            final int localY = ChunkSectionPos.unpackLocalY(packedLocalPos);
-            final int localZ = ChunkSectionPos.unpackLocalZ(packedLocalPos);
+            final int localX = sourcePos.getX() & 15;
+            final int localY = sourcePos.getY() & 15;
+            final int localZ = sourcePos.getZ() & 15;
 
             lightArrays.getFirst().set(localX, localY, localZ, skyLight);
             lightArrays.getSecond().set(localX, localY, localZ, blockLight);
@@ -4,6 +4,14 @@ import com.lukarbonite.immersive_serverside.IC_Config;
 import com.lukarbonite.immersive_serverside.ImmersiveServerside;
 import com.lukarbonite.immersive_serverside.Util;
 import com.lukarbonite.immersive_serverside.objects.*;
+import it.unimi.dsi.fastutil.longs.Long2BooleanMap;
+import it.unimi.dsi.fastutil.longs.Long2BooleanOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongList;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
 import net.minecraft.block.entity.BlockEntity;
@@ -11,17 +19,20 @@ import net.minecraft.entity.Entity;
 import net.minecraft.network.packet.Packet;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.ServerWorld;
-import net.minecraft.util.hit.BlockHitResult;
-import net.minecraft.util.hit.HitResult;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
 import net.minecraft.util.math.Direction;
 import net.minecraft.util.math.Vec3d;
-import net.minecraft.world.RaycastContext;
 import net.minecraft.world.World;
+import net.minecraft.world.chunk.ChunkSection;
 
-import java.util.EnumMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
 
@@ -32,110 +43,268 @@ public class PortalRenderer {
     private final ServerPlayerEntity player;
     private final IC_Config icConfig;
     private final BlockCache blockCache;
-    private final Map<BlockPos, ViewFrustum> viewFrustumCache;
+    private final FrustumCache viewFrustumCache;
+    private final int frameCount;
+    private final List<Portal> portals;
+    private int revealBudget;
+    private final EyePredictor eyePredictor;
+    private final Vec3d eyePos;
+    private final Vec3d lookVector;
+    private final double viewConeCos;
+    // Cells already rendered by one of this frame's portals; the first portal to claim a cell owns it.
+    private final SectionBitSet claimedCells = new SectionBitSet();
+    private Map<Portal, List<Portal>> coplanarGroups;
+    private final Map<BlockPos, CachedOcclusion> occlusionCache;
+    private final Map<BlockPos, PortalFrame> portalFrames;
+    // Distant cells collected for the impostor backend during this frame
+    private final Long2ObjectMap<BlockState> impostorCells = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectMap<TransformProfile> impostorProfiles = new Long2ObjectOpenHashMap<>();
+    // Whether every portal so far replayed its last frame or showed a shared view it had already shown
+    private boolean steady = true;
     private static final double TANGENT_INSET = 0.1;
+    static final int SHELL_DEPTH_MARGIN = 4;
+    // Frame blocks plus the frustum corner offset, portals this close together share one visibility pass.
+    private static final int COPLANAR_MARGIN = 2;
+    private static final double VIEW_CONE_MIN_DISTANCE_SQ = 4.0;
 
     private enum TangentSide { TOP, BOTTOM, LEFT, RIGHT }
+    private static final TangentSide[] TANGENT_SIDES = TangentSide.values();
+    // Blocks placed into a frame only show up after this many frames while the player stands still
+    private static final int OCCLUSION_RECHECK_FRAMES = 10;
 
-    public PortalRenderer(ServerPlayerEntity player, IC_Config icConfig, BlockCache blockCache, Map<BlockPos, ViewFrustum> viewFrustumCache) {
+    /**
+     * The result of the opposite frame check for one portal, valid for the quantized eye position it was computed from.
+     */
+    public record CachedOcclusion(QuantizedPos eye, int frame, boolean occluded, Vec3d[] debugRay) {}
+
+    public PortalRenderer(ServerPlayerEntity player, IC_Config icConfig, BlockCache blockCache, FrustumCache viewFrustumCache, int frameCount, List<Portal> portals, EyePredictor eyePredictor, Map<BlockPos, CachedOcclusion> occlusionCache, Map<BlockPos, PortalFrame> portalFrames) {
         this.player = player;
         this.icConfig = icConfig;
         this.blockCache = blockCache;
         this.viewFrustumCache = viewFrustumCache;
+        this.frameCount = frameCount;
+        this.portals = portals;
+        this.revealBudget = icConfig.revealBlocksPerFrame;
+        this.eyePredictor = eyePredictor;
+        this.occlusionCache = occlusionCache;
+        this.portalFrames = portalFrames;
+        this.eyePos = eyePredictor.getPredictedEyePos();
+        this.lookVector = eyePredictor.getLookVector();
+        this.viewConeCos = Math.cos(Math.toRadians(Math.min(180.0, icConfig.viewConeAngle / 2.0 + icConfig.viewConeGuardAngle)));
     }
 
-    public void processPortal(Portal portal, AsyncWorldView sourceView, AsyncWorldView destinationView, Set<BlockPos> blocksInView, Map<BlockPos, TransformProfile> blockToProfileMap, BlockUpdateMap blockUpdatesToSend, List<Packet<?>> packetList, Set<UUID> entitiesInCullingZone, List<Entity> nearbyEntities, List<Vec3d[]> raycastDebugData) {
+    public void processPortal(Portal portal, AsyncWorldView sourceView, AsyncWorldView destinationView, SectionBitSet blocksInView, Long2ObjectMap<TransformProfile> blockToProfileMap, BlockUpdateMap blockUpdatesToSend, List<Packet<?>> packetList, Set<UUID> entitiesInCullingZone, List<Entity> nearbyEntities, List<Vec3d[]> raycastDebugData) {
         TransformProfile transformProfile = portal.getTransformProfile();
         if (transformProfile == null) return;
 
-        // Always clear out the portal blocks themselves to allow passthrough
-        BlockPos.iterate(portal.getLowerLeft(), portal.getUpperRight()).forEach(portalBlockPos -> {
-            if (sourceView.getBlock(portalBlockPos).isOf(Blocks.NETHER_PORTAL)) {
-                BlockPos immutablePos = portalBlockPos.toImmutable();
-                blocksInView.add(immutablePos);
-                BlockState newState = Blocks.AIR.getDefaultState();
-                blockCache.put(immutablePos, newState);
-                blockUpdatesToSend.put(immutablePos, newState);
-            }
-        });
+        clearPortalBlocks(portal, sourceView, blocksInView, blockUpdatesToSend);
 
         // If occluded, skip the expensive rendering of the other side.
         if (isOccludedByOppositeFrame(portal, sourceView, raycastDebugData)) {
+            // Its cells leave the view and get purged, so none of them can be kept next time.
+            portalFrames.remove(portal.getLowerLeft());
             return;
         }
 
-        final double atmosphereRadius = Math.sqrt(icConfig.squaredAtmosphereRadius);
-        final ViewFrustum viewFrustum = viewFrustumCache.computeIfAbsent(
-                portal.getLowerLeft(),
-                k -> new ViewFrustum(player.getEyePos(), portal, atmosphereRadius)
-        );
-
         final FlatStandingRectangle portalRect = portal.toFlatStandingRectangle();
         final Vec3d portalCenter = portalRect.getCenter();
-        final double squaredAtmosphereRadius = icConfig.squaredAtmosphereRadius;
-        final double squaredAtmosphereRadiusMinusOne = icConfig.squaredAtmosphereRadiusMinusOne;
+        final AtmosphereShell atmosphereShell = AtmosphereShell.of(portalCenter, icConfig);
+        final BlockPos shellOrigin = AtmosphereShell.getOrigin(portalCenter);
+        final boolean shellOnly = icConfig.atmosphereShellOnly;
 
-        double distanceToPortalPlane = Math.abs(Util.get(player.getEyePos(), Util.rotate(portal.getAxis())) - Util.get(portal.getLowerLeft(), Util.rotate(portal.getAxis())));
+        final Direction.Axis portalPlaneAxis = Util.rotate(portal.getAxis());
+        final int portalPlaneCoordinate = Util.get(portal.getLowerLeft(), portalPlaneAxis);
+        final double eyeDepth = Util.get(eyePos, portalPlaneAxis);
+
+        final double atmosphereRadius = Math.sqrt(icConfig.squaredAtmosphereRadius);
+        final ViewFrustum viewFrustum = viewFrustumCache.get(
+                portal,
+                eyePredictor.getFrustumOrigin(portalCenter, Math.abs(eyeDepth - (portalPlaneCoordinate + 0.5)) - 0.5),
+                atmosphereRadius
+        );
+
+        double distanceToPortalPlane = Math.abs(eyeDepth - portalPlaneCoordinate);
         double proximityBuffer = Math.max(0, distanceToPortalPlane + 15);
         int iterationDepth = (int)Math.ceil(distanceToPortalPlane + atmosphereRadius + proximityBuffer);
+        if (icConfig.atmosphereShellOnly) {
+            // Nothing past the outer shell can be seen, and no slice deeper than its radius reaches inside it.
+            iterationDepth = Math.min(iterationDepth, (int)Math.ceil(atmosphereRadius) + SHELL_DEPTH_MARGIN);
+        }
 
         ServerWorld sourceWorld = sourceView.getWorld();
-        final BlockState atmosphereBlock = (sourceWorld.getRegistryKey() == World.OVERWORLD ? Blocks.NETHER_WART_BLOCK : Blocks.BLUE_CONCRETE).getDefaultState();
-        final BlockState atmosphereBetweenBlock = (sourceWorld.getRegistryKey() == World.OVERWORLD ? Blocks.RED_STAINED_GLASS : Blocks.BLUE_STAINED_GLASS).getDefaultState();
-
-        final int bottomOfWorld = sourceWorld.getBottomY();
-        final int topOfWorld = sourceWorld.getTopYInclusive();
-
-        for (Entity entity : nearbyEntities) {
-            if (viewFrustum.contains(entity.getPos())) {
-                entitiesInCullingZone.add(entity.getUuid());
+        final BlockState atmosphereBlock = getAtmosphereBlock(sourceWorld);
+        final BlockState atmosphereBetweenBlock = getAtmosphereBetweenBlock(sourceWorld);
+
+        // Only heights that exist in both dimensions can show anything, the floor rows go on the lowest of them.
+        final Util.WorldHeights worldHeights = Util.calculateMinMax(sourceWorld, destinationView.getWorld(), transformProfile);
+        final int bottomOfWorld = worldHeights.min();
+        final int topOfWorld = worldHeights.max();
+
+        final int entityCount = nearbyEntities.size();
+        final double[] entityXs = new double[entityCount];
+        final double[] entityYs = new double[entityCount];
+        final double[] entityZs = new double[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            Entity entity = nearbyEntities.get(i);
+            entityXs[i] = entity.getX();
+            entityYs[i] = entity.getY();
+            entityZs[i] = entity.getZ();
+        }
+        final long[] entitiesInFrustum = viewFrustum.containsAll(entityXs, entityYs, entityZs, entityCount);
+        for (int i = 0; i < entityCount; i++) {
+            if (ViewFrustum.isSet(entitiesInFrustum, i)) {
+                entitiesInCullingZone.add(nearbyEntities.get(i).getUuid());
             }
         }
 
+        final List<Portal> coplanarGroup = getCoplanarGroup(portal);
+        final boolean viewConeCulling = icConfig.viewConeCulling;
+        // A portal entirely behind the player only keeps what it has already sent.
+        final boolean maintainOnly = viewConeCulling && isBehindViewer(portalRect, eyePos);
+        final int impostorDistance = icConfig.impostorDistance;
+        // Open destinations are mostly air, so whole sections are resolved at once where they hold a single state.
+        final Long2ObjectMap<Optional<BlockState>> uniformSections = new Long2ObjectOpenHashMap<>();
+
+        final ServerWorld destinationWorld = destinationView.getWorld();
+        PortalFrame previousFrame = portalFrames.get(portal.getLowerLeft());
+        // Impostor cells are never cached, so this is what tells the reveal gate they are already shown
+        final Long2ObjectMap<BlockState> shownImpostors = previousFrame != null && previousFrame.transformProfile.equals(transformProfile)
+                ? previousFrame.impostors : Long2ObjectMaps.emptyMap();
+        // Behind the player nothing new is revealed, so the last frame is kept as it is without walking the frustum.
+        // The frame itself stays untouched, so changes in the meantime are still picked up once the portal is in front again.
+        if (maintainOnly && previousFrame != null && previousFrame.transformProfile.equals(transformProfile)
+                && !claimedCells.intersects(previousFrame.walked)) {
+            replayFrame(previousFrame, transformProfile, blocksInView, blockToProfileMap);
+            return;
+        }
+        if (icConfig.incrementalRefreshFrames <= 0 || previousFrame == null
+                || frameCount - previousFrame.fullRefreshFrame >= icConfig.incrementalRefreshFrames || frameCount < previousFrame.fullRefreshFrame
+                || !previousFrame.transformProfile.equals(transformProfile)) {
+            previousFrame = null;
+        }
+        // Nothing moved and nothing changed, so the last frame's result still holds as a whole.
+        if (previousFrame != null && previousFrame.frustum == viewFrustum && previousFrame.complete && !viewConeCulling
+                && !claimedCells.intersects(previousFrame.walked) && !previousFrame.hasChangedSections(sourceWorld, destinationWorld)) {
+            replayFrame(previousFrame, transformProfile, blocksInView, blockToProfileMap);
+            return;
+        }
+        steady = false;
+        final PortalFrame previous = previousFrame;
+        final PortalFrame frame = new PortalFrame(viewFrustum, transformProfile, previous != null ? previous.fullRefreshFrame : frameCount, System.currentTimeMillis());
+        portalFrames.put(portal.getLowerLeft(), frame);
+        final Long2BooleanMap changedSourceSections = new Long2BooleanOpenHashMap();
+        final Long2BooleanMap changedDestinationSections = new Long2BooleanOpenHashMap();
+        final AirColumnFilter airColumnFilter = new AirColumnFilter(sourceView, destinationView, transformProfile, atmosphereShell, shellOrigin);
+
         viewFrustum.iterate(posInFrustum -> {
-            if (isFrameBlock(posInFrustum, portal, sourceView)) {
+            int shellClass = atmosphereShell.classify(posInFrustum.getX() - shellOrigin.getX(), posInFrustum.getY() - shellOrigin.getY(), posInFrustum.getZ() - shellOrigin.getZ());
+            if (shellOnly && shellClass == AtmosphereShell.BEYOND_SHELL) {
+                return;
+            }
+            if (!ownsCell(portal, coplanarGroup, eyePos, posInFrustum) || claimedCells.contains(posInFrustum)) {
+                return;
+            }
+            if (previous != null && previous.settled.contains(posInFrustum)) {
+                BlockPos transformedPos = transformProfile.transform(posInFrustum);
+                if (!hasSectionChanged(changedSourceSections, sourceWorld, posInFrustum, previous.resolvedAtMillis)
+                        && !hasSectionChanged(changedDestinationSections, destinationWorld, transformedPos, previous.resolvedAtMillis)) {
+                    keepFromPreviousFrame(posInFrustum.toImmutable(), transformedPos, previous, frame, transformProfile, blocksInView, blockToProfileMap);
+                    return;
+                }
+            }
+            // Without a frame to replay, only cells that are already shown are looked at
+            if (maintainOnly && blockCache.get(posInFrustum) == null && !shownImpostors.containsKey(posInFrustum.asLong())) {
+                frame.complete = false;
+                return;
+            }
+            BlockState sourceState = sourceView.getBlock(posInFrustum);
+            if (isFrameBlock(posInFrustum, sourceState, portal, sourceView)) {
                 return;
             }
 
-            double distSq = portalCenter.squaredDistanceTo(posInFrustum.getX() + 0.5, posInFrustum.getY() + 0.5, posInFrustum.getZ() + 0.5);
             BlockPos immutablePos = posInFrustum.toImmutable();
+            BlockState cachedState = blockCache.get(immutablePos);
+            boolean shown = cachedState != null || shownImpostors.containsKey(immutablePos.asLong());
+            boolean inViewCone = !viewConeCulling || (!maintainOnly && isInViewCone(posInFrustum, eyePos));
+            if (!shown && !inViewCone) {
+                frame.complete = false;
+                return;
+            }
+
+            // Blocks the client has never seen are only revealed while this frame's budget lasts.
+            // The frustum is walked outwards from the aperture, so the nearest slices are revealed first.
+            if (!shown && (!hasRevealBudget() || !blockCache.canCache(immutablePos))) {
+                frame.complete = false;
+                return;
+            }
             blocksInView.add(immutablePos);
+            claimedCells.add(immutablePos);
+            frame.inView.add(immutablePos);
+            frame.walked.add(immutablePos);
+
+            // Far blocks that were already sent keep their cached state until their tier is due again,
+            // and so does everything the player is currently not looking at.
+            int depthBehindPortal = Math.abs(Util.get(posInFrustum, portalPlaneAxis) - portalPlaneCoordinate);
+            if (cachedState != null && (!inViewCone || !isRefreshDue(depthBehindPortal))) {
+                if (shellClass == AtmosphereShell.INSIDE) {
+                    blockToProfileMap.put(immutablePos.asLong(), transformProfile);
+                    frame.lit.add(immutablePos);
+                }
+                // Not settled, but a replayed frame keeps it too, so changes to it still have to be noticed.
+                frame.recordSections(immutablePos, transformProfile.transform(immutablePos));
+                return;
+            }
 
-            if (distSq > squaredAtmosphereRadiusMinusOne) {
-                BlockState atmosphereState = (distSq > squaredAtmosphereRadius) ? atmosphereBlock : atmosphereBetweenBlock;
+            if (shellClass != AtmosphereShell.INSIDE) {
+                BlockState atmosphereState = (shellClass == AtmosphereShell.BETWEEN) ? atmosphereBetweenBlock : atmosphereBlock;
                 if (posInFrustum.getY() == bottomOfWorld) atmosphereState = atmosphereBlock;
                 if (posInFrustum.getY() == bottomOfWorld + 1) atmosphereState = atmosphereBetweenBlock;
 
-                BlockState cachedState = blockCache.get(immutablePos);
-                if (!atmosphereState.equals(cachedState)) {
+                // Atmosphere states are fixed per cell, so once sent there is nothing left to compare.
+                if (atmosphereState != cachedState) {
+                    if (cachedState == null) revealBudget--;
                     blockCache.put(immutablePos, atmosphereState);
                     blockUpdatesToSend.put(immutablePos, atmosphereState);
                 }
+                BlockPos transformedPos = transformProfile.transform(immutablePos);
+                settle(frame, immutablePos, transformedPos, sourceView, destinationView);
             } else {
-                blockToProfileMap.put(immutablePos, transformProfile);
+                blockToProfileMap.put(immutablePos.asLong(), transformProfile);
+                frame.lit.add(immutablePos);
                 BlockPos transformedPos = transformProfile.transform(immutablePos);
-                BlockState newState;
-                BlockEntity newBlockEntity = null;
-
-                boolean occlude = !portal.hasCorners() && Util.get(transformedPos, Util.rotate(transformProfile.getTargetAxis(portal.getAxis()))) == Util.get(transformProfile.getTargetPos(), Util.rotate(transformProfile.getTargetAxis(portal.getAxis())));
-
-                if (occlude) {
-                    newState = Blocks.AIR.getDefaultState();
-                } else {
-                    BlockState stateFromOtherDimension = destinationView.getBlock(transformedPos);
-                    if (stateFromOtherDimension.isOf(Blocks.NETHER_PORTAL)) {
-                        newState = Blocks.AIR.getDefaultState();
-                    } else {
-                        newState = transformProfile.rotateState(stateFromOtherDimension);
-                        newBlockEntity = destinationView.getBlockEntity(transformedPos);
-                    }
-                }
+                settle(frame, immutablePos, transformedPos, sourceView, destinationView);
+                BlockState newState = resolveDestinationState(portal, transformProfile, transformedPos, destinationView, uniformSections);
+                BlockEntity newBlockEntity = newState.hasBlockEntity() ? destinationView.getBlockEntity(transformedPos) : null;
 
                 if (posInFrustum.getY() == bottomOfWorld) newState = atmosphereBlock;
                 if (posInFrustum.getY() == bottomOfWorld + 1) newState = atmosphereBetweenBlock;
 
-                BlockState cachedState = blockCache.get(immutablePos);
+                // Distant solid geometry in front of open air is handed to the impostor backend instead.
+                if (impostorDistance > 0 && depthBehindPortal > impostorDistance && newBlockEntity == null
+                        && !newState.isAir() && sourceState.isAir() && posInFrustum.getY() > bottomOfWorld + 1) {
+                    blocksInView.remove(immutablePos);
+                    blockToProfileMap.remove(immutablePos.asLong());
+                    frame.inView.remove(immutablePos);
+                    frame.lit.remove(immutablePos);
+                    impostorCells.put(immutablePos.asLong(), newState);
+                    impostorProfiles.put(immutablePos.asLong(), transformProfile);
+                    frame.impostors.put(immutablePos.asLong(), newState);
+                    return;
+                }
+
+                // Cells where the destination looks like the source are already right on the client.
+                // They stay out of the cache, so nothing has to be compared or reverted for them later.
+                if (newState == sourceState && newBlockEntity == null) {
+                    blocksInView.remove(immutablePos);
+                    frame.inView.remove(immutablePos);
+                    if (blockCache.remove(immutablePos) != null) {
+                        blockUpdatesToSend.put(immutablePos, sourceState);
+                    }
+                    return;
+                }
+
                 if (!newState.equals(cachedState)) {
+                    if (cachedState == null) revealBudget--;
                     blockCache.put(immutablePos, newState);
                     blockUpdatesToSend.put(immutablePos, newState);
                     if (newBlockEntity != null) {
@@ -146,52 +315,494 @@ public class PortalRenderer {
                     }
                 }
             }
-        }, iterationDepth, bottomOfWorld, topOfWorld);
+        }, iterationDepth, bottomOfWorld, topOfWorld, airColumnFilter);
+        // Columns skipped over a missing chunk were never looked at, so the frame can't be replayed as a whole
+        if (airColumnFilter.sawMissingChunk) {
+            frame.complete = false;
+        }
     }
 
-    private boolean isOccludedByOppositeFrame(Portal portal, AsyncWorldView worldView, List<Vec3d[]> raycastDebugData) {
-        final Vec3d playerEyePos = player.getEyePos();
-        final Map<TangentSide, Vec3d> tangentPoints = getTangentPoints(portal, playerEyePos);
+    /**
+     * Marks a resolved cell as one the next frame may keep.
+     * Cells resolved while a chunk on either side was missing showed air instead and have to be resolved again.
+     */
+    private static void settle(PortalFrame frame, BlockPos pos, BlockPos transformedPos, AsyncWorldView sourceView, AsyncWorldView destinationView) {
+        frame.recordSections(pos, transformedPos);
+        if (sourceView.getChunk(pos) == null || destinationView.getChunk(transformedPos) == null) {
+            frame.complete = false;
+            return;
+        }
+        frame.settled.add(pos);
+    }
 
-        if (tangentPoints.isEmpty()) {
-            return false;
+    private boolean hasSectionChanged(Long2BooleanMap checkedSections, ServerWorld world, BlockPos pos, long sinceMillis) {
+        long sectionKey = ChunkSectionPos.toLong(pos);
+        if (checkedSections.containsKey(sectionKey)) return checkedSections.get(sectionKey);
+        boolean changed = SectionChangeTracker.hasChangedSince(world, sectionKey, sinceMillis);
+        checkedSections.put(sectionKey, changed);
+        return changed;
+    }
+
+    /**
+     * Carries a settled cell over from the previous frame without resolving it again.
+     */
+    private void keepFromPreviousFrame(BlockPos pos, BlockPos transformedPos, PortalFrame previous, PortalFrame frame, TransformProfile transformProfile, SectionBitSet blocksInView, Long2ObjectMap<TransformProfile> blockToProfileMap) {
+        claimedCells.add(pos);
+        frame.walked.add(pos);
+        frame.settled.add(pos);
+        frame.recordSections(pos, transformedPos);
+        // The kept cell was resolved no later than the previous frame
+        frame.resolvedAtMillis = Math.min(frame.resolvedAtMillis, previous.resolvedAtMillis);
+
+        if (previous.inView.contains(pos)) {
+            blocksInView.add(pos);
+            frame.inView.add(pos);
         }
+        if (previous.lit.contains(pos)) {
+            blockToProfileMap.put(pos.asLong(), transformProfile);
+            frame.lit.add(pos);
+        }
+        BlockState impostorState = previous.impostors.get(pos.asLong());
+        if (impostorState != null) {
+            impostorCells.put(pos.asLong(), impostorState);
+            impostorProfiles.put(pos.asLong(), transformProfile);
+            frame.impostors.put(pos.asLong(), impostorState);
+        }
+    }
 
-        Vec3d shortestRayTangentPoint = null;
-        TangentSide shortestRaySide = null;
-        double minDistanceSq = Double.MAX_VALUE;
+    private void replayFrame(PortalFrame previous, TransformProfile transformProfile, SectionBitSet blocksInView, Long2ObjectMap<TransformProfile> blockToProfileMap) {
+        claimedCells.addAll(previous.walked);
+        blocksInView.addAll(previous.inView);
+        previous.lit.forEach(packedPos -> blockToProfileMap.put(packedPos, transformProfile));
+        for (Long2ObjectMap.Entry<BlockState> entry : previous.impostors.long2ObjectEntrySet()) {
+            impostorCells.put(entry.getLongKey(), entry.getValue());
+            impostorProfiles.put(entry.getLongKey(), transformProfile);
+        }
+    }
 
-        for (Map.Entry<TangentSide, Vec3d> entry : tangentPoints.entrySet()) {
-            double distSq = playerEyePos.squaredDistanceTo(entry.getValue());
-            if (distSq < minDistanceSq) {
-                minDistanceSq = distSq;
-                shortestRayTangentPoint = entry.getValue();
-                shortestRaySide = entry.getKey();
+    /**
+     * Skips the runs of a column inside the atmosphere that are air in both dimensions, so they never need a fake block:
+     * everything above the terrain of both dimensions, and any stretch where the chunk sections on both sides are empty.
+     * One layer next to the blocks is kept, so the lighting of their faces still comes from the destination.
+     * <p>
+     * The Nether's heightmap stops at its bedrock roof, so under it only empty sections are skipped,
+     * and the Nether's caverns rarely leave a whole section empty. Nether portals gain little from this.
+     */
+    private static class AirColumnFilter implements ViewFrustum.ColumnFilter {
+        private final AsyncWorldView sourceView;
+        private final AsyncWorldView destinationView;
+        private final TransformProfile transformProfile;
+        private final AtmosphereShell atmosphereShell;
+        private final BlockPos shellOrigin;
+        private final BlockPos.Mutable columnPos = new BlockPos.Mutable();
+
+        private boolean hasColumn;
+        private int columnX;
+        private int columnZ;
+        // Sorted, disjoint and not touching, as from and to pairs
+        private int[] skipRanges = new int[16];
+        private int skipCount;
+        boolean sawMissingChunk;
+
+        private AirColumnFilter(AsyncWorldView sourceView, AsyncWorldView destinationView, TransformProfile transformProfile, AtmosphereShell atmosphereShell, BlockPos shellOrigin) {
+            this.sourceView = sourceView;
+            this.destinationView = destinationView;
+            this.transformProfile = transformProfile;
+            this.atmosphereShell = atmosphereShell;
+            this.shellOrigin = shellOrigin;
+        }
+
+        @Override
+        public int nextY(int x, int z, int y) {
+            if (!hasColumn || x != columnX || z != columnZ) {
+                loadColumn(x, z);
             }
+            for (int i = 0; i < skipCount; i += 2) {
+                if (y < skipRanges[i]) return y;
+                if (y <= skipRanges[i + 1]) return skipRanges[i + 1] + 1;
+            }
+            return y;
         }
 
-        if (shortestRayTangentPoint == null) {
-            return false;
+        private void loadColumn(int x, int z) {
+            hasColumn = true;
+            columnX = x;
+            columnZ = z;
+            skipCount = 0;
+
+            int dx = x - shellOrigin.getX();
+            int dz = z - shellOrigin.getZ();
+            int insideMinDy = atmosphereShell.getInsideMinDy(dx, dz);
+            int insideMaxDy = atmosphereShell.getInsideMaxDy(dx, dz);
+            if (insideMinDy > insideMaxDy) return;
+            int insideFrom = shellOrigin.getY() + insideMinDy;
+            int insideTo = shellOrigin.getY() + insideMaxDy;
+
+            BlockPos transformedPos = transformProfile.transform(columnPos.set(x, shellOrigin.getY(), z));
+            if (sourceView.getChunk(columnPos) == null || destinationView.getChunk(transformedPos) == null) {
+                sawMissingChunk = true;
+            }
+
+            // Walk the stretches where neither side crosses a section border
+            int emptyFrom = Integer.MIN_VALUE;
+            for (int y = insideFrom; y <= insideTo; ) {
+                int destinationY = transformProfile.transformYOnly(y);
+                int stretchTo = Math.min(insideTo, Math.min(y | 15, transformProfile.unTransformYOnly(destinationY | 15)));
+                boolean empty = isEmpty(sourceView.getSection(x >> 4, y >> 4, z >> 4))
+                        && isEmpty(destinationView.getSection(transformedPos.getX() >> 4, destinationY >> 4, transformedPos.getZ() >> 4));
+                if (empty && emptyFrom == Integer.MIN_VALUE) {
+                    emptyFrom = y;
+                } else if (!empty && emptyFrom != Integer.MIN_VALUE) {
+                    addSkip(emptyFrom == insideFrom ? emptyFrom : emptyFrom + 1, y - 2);
+                    emptyFrom = Integer.MIN_VALUE;
+                }
+                y = stretchTo + 1;
+            }
+            if (emptyFrom != Integer.MIN_VALUE) {
+                addSkip(emptyFrom == insideFrom ? emptyFrom : emptyFrom + 1, insideTo);
+            }
+
+            int destinationTop = transformProfile.unTransformYOnly(destinationView.getTopY(transformedPos.getX(), transformedPos.getZ()));
+            int terrainTop = Math.max(sourceView.getTopY(x, z), destinationTop);
+            addSkip(Math.max(terrainTop + 2, insideFrom), insideTo);
         }
 
-        final Vec3d start = playerEyePos;
-        final Vec3d direction = shortestRayTangentPoint.subtract(start).normalize();
-        final Vec3d end = start.add(direction.multiply(icConfig.portalDepth));
+        private static boolean isEmpty(ChunkSection section) {
+            return section == null || section.isEmpty();
+        }
 
-        if (player.getWorld().getGameRules().getBoolean(ImmersiveServerside.PORTAL_DEBUG)) {
-            raycastDebugData.add(new Vec3d[]{start, end});
+        // The empty stretches come in ascending order, the terrain run last, so only the tail ever has to be merged
+        private void addSkip(int from, int to) {
+            if (from > to) return;
+            while (skipCount > 0 && skipRanges[skipCount - 1] >= from - 1) {
+                from = Math.min(from, skipRanges[skipCount - 2]);
+                to = Math.max(to, skipRanges[skipCount - 1]);
+                skipCount -= 2;
+            }
+            if (skipCount == skipRanges.length) {
+                skipRanges = Arrays.copyOf(skipRanges, skipCount * 2);
+            }
+            skipRanges[skipCount++] = from;
+            skipRanges[skipCount++] = to;
         }
+    }
+
+    /**
+     * Shows a prebuilt shared view for a portal the player is far away from.
+     * If the player hasn't received this version yet and every cell of it is this portal's to show, the view's
+     * encoded packets are sent as they are. Otherwise only cells whose cached state differs get block updates,
+     * leaving out the cells other portals own and the ones the cache has no room for.
+     */
+    public void processSharedPortal(Portal portal, SharedPortalViews.View sharedView, boolean resend, AsyncWorldView sourceView, SectionBitSet blocksInView, Long2ObjectMap<TransformProfile> blockToProfileMap, BlockUpdateMap blockUpdatesToSend, List<Packet<?>> packetList) {
+        TransformProfile transformProfile = portal.getTransformProfile();
+        if (transformProfile == null) return;
 
-        BlockHitResult hitResult = worldView.raycast(new RaycastContext(start, end, RaycastContext.ShapeType.COLLIDER, RaycastContext.FluidHandling.NONE, player));
+        clearPortalBlocks(portal, sourceView, blocksInView, blockUpdatesToSend);
 
-        if (hitResult.getType() == HitResult.Type.MISS) {
-            return false;
+        boolean wholeView = resend;
+        LongList changedCells = new LongArrayList();
+        for (Long2ObjectMap.Entry<BlockState> entry : sharedView.getStates().long2ObjectEntrySet()) {
+            long packedPos = entry.getLongKey();
+            BlockPos pos = BlockPos.fromLong(packedPos);
+            if (claimedCells.contains(packedPos) || !blockCache.canCache(pos)) {
+                wholeView = false;
+                continue;
+            }
+            claimedCells.add(packedPos);
+            blocksInView.add(packedPos);
+            if (sharedView.getLit().contains(packedPos)) {
+                blockToProfileMap.put(packedPos, transformProfile);
+            }
+            if (entry.getValue() != blockCache.get(pos)) {
+                blockCache.put(pos, entry.getValue());
+                changedCells.add(packedPos);
+            }
         }
+        if (changedCells.isEmpty()) return;
+        steady = false;
 
-        BlockPos hitPos = hitResult.getBlockPos();
-        BlockState hitState = worldView.getBlock(hitPos);
+        if (wholeView) {
+            packetList.addAll(sharedView.getPackets());
+            return;
+        }
+        LongIterator iterator = changedCells.iterator();
+        while (iterator.hasNext()) {
+            long packedPos = iterator.nextLong();
+            blockUpdatesToSend.put(BlockPos.fromLong(packedPos), sharedView.getStates().get(packedPos));
+            Packet<?> blockEntityPacket = sharedView.getBlockEntityPacket(packedPos);
+            if (blockEntityPacket != null) {
+                packetList.add(blockEntityPacket);
+            }
+        }
+    }
 
-        return hitState.isOpaqueFullCube() && isBlockOnOppositeFrame(hitPos, portal, shortestRaySide);
+    // Always clear out the portal blocks themselves to allow passthrough
+    private void clearPortalBlocks(Portal portal, AsyncWorldView sourceView, SectionBitSet blocksInView, BlockUpdateMap blockUpdatesToSend) {
+        BlockPos.iterate(portal.getLowerLeft(), portal.getUpperRight()).forEach(portalBlockPos -> {
+            if (sourceView.getBlock(portalBlockPos).isOf(Blocks.NETHER_PORTAL)) {
+                BlockPos immutablePos = portalBlockPos.toImmutable();
+                // Over the memory budget the portal block is left as it is
+                if (!blockCache.canCache(immutablePos)) return;
+                blocksInView.add(immutablePos);
+                BlockState newState = Blocks.AIR.getDefaultState();
+                blockCache.put(immutablePos, newState);
+                blockUpdatesToSend.put(immutablePos, newState);
+            }
+        });
+    }
+
+    static BlockState getAtmosphereBlock(ServerWorld sourceWorld) {
+        return (sourceWorld.getRegistryKey() == World.OVERWORLD ? Blocks.NETHER_WART_BLOCK : Blocks.BLUE_CONCRETE).getDefaultState();
+    }
+
+    static BlockState getAtmosphereBetweenBlock(ServerWorld sourceWorld) {
+        return (sourceWorld.getRegistryKey() == World.OVERWORLD ? Blocks.RED_STAINED_GLASS : Blocks.BLUE_STAINED_GLASS).getDefaultState();
+    }
+
+    /**
+     * Returns the state the destination shows at the given transformed position.
+     * The destination's own portal and its frame plane on portals without corners show up as air.
+     * @param uniformSections Destination sections that were already checked for a single state during this pass,
+     *                        each with the state its cells show or empty if the cells have to be looked up one by one.
+     */
+    static BlockState resolveDestinationState(Portal portal, TransformProfile transformProfile, BlockPos transformedPos, AsyncWorldView destinationView, Long2ObjectMap<Optional<BlockState>> uniformSections) {
+        Direction.Axis targetPlaneAxis = Util.rotate(transformProfile.getTargetAxis(portal.getAxis()));
+        boolean occlude = !portal.hasCorners() && Util.get(transformedPos, targetPlaneAxis) == Util.get(transformProfile.getTargetPos(), targetPlaneAxis);
+        if (occlude) {
+            return Blocks.AIR.getDefaultState();
+        }
+
+        long sectionKey = ChunkSectionPos.toLong(transformedPos);
+        Optional<BlockState> uniformState = uniformSections.get(sectionKey);
+        if (uniformState == null) {
+            BlockState sectionState = destinationView.getUniformSectionState(transformedPos);
+            // Block entities have to be looked up per cell, so sections made of them take the slow path.
+            uniformState = sectionState == null || sectionState.hasBlockEntity() ? Optional.empty() : Optional.of(toShownState(transformProfile, sectionState));
+            uniformSections.put(sectionKey, uniformState);
+        }
+        if (uniformState.isPresent()) {
+            return uniformState.get();
+        }
+        return toShownState(transformProfile, destinationView.getBlock(transformedPos));
+    }
+
+    private static BlockState toShownState(TransformProfile transformProfile, BlockState stateFromOtherDimension) {
+        if (stateFromOtherDimension.isOf(Blocks.NETHER_PORTAL)) {
+            return Blocks.AIR.getDefaultState();
+        }
+        return transformProfile.rotateState(stateFromOtherDimension);
+    }
+
+    /**
+     * Blocks within {@code nearRefreshDepth} of the portal plane are refreshed every frame.
+     * Anything further back is refreshed every {@code farRefreshInterval} frames, staggered by depth
+     * so that each frame only re-resolves a share of the far slices.
+     */
+    private boolean isRefreshDue(int depthBehindPortal) {
+        if (depthBehindPortal <= icConfig.nearRefreshDepth) return true;
+        return (frameCount + depthBehindPortal) % icConfig.farRefreshInterval == 0;
+    }
+
+    /**
+     * Whether this frame is a replay of the last one, so whatever it lights can only have changed
+     * through the block updates it queued or through changes in the worlds themselves.
+     */
+    public boolean isSteady() {
+        return steady;
+    }
+
+    /**
+     * Meshes the distant cells collected by {@link #processPortal} into block display impostors.
+     * If that takes more than {@code maxImpostorEntities} boxes, the smallest ones fall back to fake blocks.
+     */
+    public void finishImpostors(ImpostorRenderer impostorRenderer, SectionBitSet blocksInView, Long2ObjectMap<TransformProfile> blockToProfileMap, BlockUpdateMap blockUpdatesToSend, List<Packet<?>> packetList) {
+        List<ImpostorRenderer.Box> boxes = ImpostorRenderer.mesh(impostorCells);
+        int maxBoxes = Math.max(0, icConfig.maxImpostorEntities);
+        if (boxes.size() > maxBoxes) {
+            boxes.sort(Comparator.comparingInt(ImpostorRenderer.Box::volume).reversed());
+            for (ImpostorRenderer.Box box : boxes.subList(maxBoxes, boxes.size())) {
+                box.forEachPos(pos -> {
+                    BlockPos immutablePos = pos.toImmutable();
+                    if (!blockCache.canCache(immutablePos)) return;
+                    blocksInView.add(immutablePos);
+                    blockToProfileMap.put(immutablePos.asLong(), impostorProfiles.get(immutablePos.asLong()));
+                    if (box.state() != blockCache.get(immutablePos)) {
+                        blockCache.put(immutablePos, box.state());
+                        blockUpdatesToSend.put(immutablePos, box.state());
+                    }
+                });
+            }
+            boxes = new ArrayList<>(boxes.subList(0, maxBoxes));
+        }
+        impostorRenderer.update(boxes, packetList);
+    }
+
+    private List<Portal> getCoplanarGroup(Portal portal) {
+        if (coplanarGroups == null) {
+            coplanarGroups = groupCoplanarPortals(portals);
+        }
+        return coplanarGroups.getOrDefault(portal, List.of(portal));
+    }
+
+    /**
+     * Groups portals that lie in the same plane and touch or overlap, e.g. portal walls.
+     * Each group keeps the order of the given list.
+     */
+    private static Map<Portal, List<Portal>> groupCoplanarPortals(List<Portal> portals) {
+        int[] parent = new int[portals.size()];
+        for (int i = 0; i < parent.length; i++) parent[i] = i;
+
+        for (int i = 0; i < portals.size(); i++) {
+            for (int j = i + 1; j < portals.size(); j++) {
+                if (areCoplanarNeighbours(portals.get(i), portals.get(j))) {
+                    parent[findRoot(parent, j)] = findRoot(parent, i);
+                }
+            }
+        }
+
+        Map<Integer, List<Portal>> groupsByRoot = new HashMap<>();
+        for (int i = 0; i < portals.size(); i++) {
+            groupsByRoot.computeIfAbsent(findRoot(parent, i), k -> new ArrayList<>()).add(portals.get(i));
+        }
+
+        Map<Portal, List<Portal>> groups = new HashMap<>();
+        for (List<Portal> group : groupsByRoot.values()) {
+            for (Portal portal : group) {
+                groups.put(portal, group);
+            }
+        }
+        return groups;
+    }
+
+    private static int findRoot(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static boolean areCoplanarNeighbours(Portal a, Portal b) {
+        if (a.getAxis() != b.getAxis()) return false;
+        Direction.Axis planeAxis = Util.rotate(a.getAxis());
+        if (Util.get(a.getLowerLeft(), planeAxis) != Util.get(b.getLowerLeft(), planeAxis)) return false;
+
+        return a.getLeft() - COPLANAR_MARGIN <= b.getRight() + COPLANAR_MARGIN && b.getLeft() - COPLANAR_MARGIN <= a.getRight() + COPLANAR_MARGIN &&
+                a.getBottom() - COPLANAR_MARGIN <= b.getTop() + COPLANAR_MARGIN && b.getBottom() - COPLANAR_MARGIN <= a.getTop() + COPLANAR_MARGIN;
+    }
+
+    /**
+     * Within a group of coplanar portals a cell belongs to the portal whose opening the line of sight
+     * to the cell actually passes through. If it passes through none of them, the closest opening wins,
+     * and on a tie the portal that comes first in the group.
+     */
+    private static boolean ownsCell(Portal portal, List<Portal> group, Vec3d eyePos, BlockPos pos) {
+        if (group.size() < 2) return true;
+
+        Direction.Axis contentAxis = portal.getAxis();
+        Direction.Axis planeAxis = Util.rotate(contentAxis);
+        double eyeDepth = Util.get(eyePos, planeAxis);
+        double cellDepthOffset = Util.get(pos, planeAxis) + 0.5 - eyeDepth;
+        if (Math.abs(cellDepthOffset) < 1e-7) return true;
+
+        double t = (Util.get(portal.getLowerLeft(), planeAxis) + 0.5 - eyeDepth) / cellDepthOffset;
+        double eyeU = Util.get(eyePos, contentAxis);
+        double crossingU = eyeU + t * (Util.get(pos, contentAxis) + 0.5 - eyeU);
+        double crossingY = eyePos.y + t * (pos.getY() + 0.5 - eyePos.y);
+
+        Portal owner = null;
+        double bestDistanceSq = Double.MAX_VALUE;
+        for (Portal candidate : group) {
+            double du = distanceOutside(crossingU, candidate.getLeft(), candidate.getRight() + 1.0);
+            double dy = distanceOutside(crossingY, candidate.getBottom(), candidate.getTop() + 1.0);
+            double distanceSq = du * du + dy * dy;
+            if (distanceSq < bestDistanceSq) {
+                bestDistanceSq = distanceSq;
+                owner = candidate;
+            }
+        }
+        return owner == portal;
+    }
+
+    private static double distanceOutside(double value, double min, double max) {
+        if (value < min) return min - value;
+        if (value > max) return value - max;
+        return 0;
+    }
+
+    private boolean isInViewCone(BlockPos pos, Vec3d eyePos) {
+        double dx = pos.getX() + 0.5 - eyePos.x;
+        double dy = pos.getY() + 0.5 - eyePos.y;
+        double dz = pos.getZ() + 0.5 - eyePos.z;
+        double lengthSq = dx * dx + dy * dy + dz * dz;
+        if (lengthSq < VIEW_CONE_MIN_DISTANCE_SQ) return true;
+
+        double dot = dx * lookVector.x + dy * lookVector.y + dz * lookVector.z;
+        double threshold = viewConeCos * viewConeCos * lengthSq;
+        if (viewConeCos >= 0) {
+            return dot >= 0 && dot * dot >= threshold;
+        }
+        return dot >= 0 || dot * dot <= threshold;
+    }
+
+    /**
+     * Only a cone narrower than a half-space can be ruled out from the portal's corners alone:
+     * if all four are behind the player, so is the whole opening.
+     */
+    private boolean isBehindViewer(FlatStandingRectangle portalRect, Vec3d eyePos) {
+        if (viewConeCos <= 0) return false;
+        for (Vec3d corner : new Vec3d[]{portalRect.getTopLeft(), portalRect.getTopRight(), portalRect.getBottomLeft(), portalRect.getBottomRight()}) {
+            if (corner.subtract(eyePos).dotProduct(lookVector) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasRevealBudget() {
+        return icConfig.revealBlocksPerFrame <= 0 || revealBudget > 0;
+    }
+
+    private boolean isOccludedByOppositeFrame(Portal portal, AsyncWorldView worldView, List<Vec3d[]> raycastDebugData) {
+        final QuantizedPos quantizedEye = QuantizedPos.of(eyePos);
+        CachedOcclusion cached = occlusionCache.get(portal.getLowerLeft());
+        if (cached == null || !cached.eye().equals(quantizedEye) || frameCount - cached.frame() >= OCCLUSION_RECHECK_FRAMES || frameCount < cached.frame()) {
+            cached = computeOcclusion(portal, worldView, quantizedEye);
+            occlusionCache.put(portal.getLowerLeft(), cached);
+        }
+
+        if (cached.debugRay() != null && player.getWorld().getGameRules().getBoolean(ImmersiveServerside.PORTAL_DEBUG)) {
+            raycastDebugData.add(cached.debugRay());
+        }
+        return cached.occluded();
+    }
+
+    private CachedOcclusion computeOcclusion(Portal portal, AsyncWorldView worldView, QuantizedPos quantizedEye) {
+        final Vec3d start = quantizedEye.toVec3d();
+
+        Direction.Axis planeAxis = Util.rotate(portal.getAxis());
+        double portalBlockPlaneCoord = Util.get(portal.getLowerLeft(), planeAxis);
+        double closePlaneCoordinate = (Util.get(start, planeAxis) > portalBlockPlaneCoord + 0.5) ? portalBlockPlaneCoord + 1.0 : portalBlockPlaneCoord;
+
+        Vec3d shortestRayTangentPoint = null;
+        TangentSide shortestRaySide = null;
+        double minDistanceSq = Double.MAX_VALUE;
+        for (TangentSide side : TANGENT_SIDES) {
+            Vec3d tangentPoint = getTangentPoint(portal, side, closePlaneCoordinate);
+            double distSq = start.squaredDistanceTo(tangentPoint);
+            if (distSq < minDistanceSq) {
+                minDistanceSq = distSq;
+                shortestRayTangentPoint = tangentPoint;
+                shortestRaySide = side;
+            }
+        }
+
+        final Vec3d direction = shortestRayTangentPoint.subtract(start).normalize();
+        final Vec3d end = start.add(direction.multiply(icConfig.portalDepth));
+
+        BlockPos hitPos = VoxelRaycaster.findFirst(worldView, start, end, BlockState::isOpaqueFullCube);
+        boolean occluded = hitPos != null && isBlockOnOppositeFrame(hitPos, portal, shortestRaySide);
+        return new CachedOcclusion(quantizedEye, frameCount, occluded, new Vec3d[]{start, end});
     }
 
     private boolean isBlockOnOppositeFrame(BlockPos blockPos, Portal portal, TangentSide tangentSide) {
@@ -217,40 +828,30 @@ public class PortalRenderer {
         };
     }
 
-    private Map<TangentSide, Vec3d> getTangentPoints(Portal portal, Vec3d playerEyePos) {
-        Direction.Axis contentAxis = portal.getAxis();
-        Direction.Axis planeAxis = Util.rotate(contentAxis);
-
-        double portalBlockPlaneCoord = Util.get(portal.getLowerLeft(), planeAxis);
-        double playerPlaneCoord = Util.get(playerEyePos, planeAxis);
-        double closePlaneCoordinate = (playerPlaneCoord > portalBlockPlaneCoord + 0.5) ? portalBlockPlaneCoord + 1.0 : portalBlockPlaneCoord;
-
-        double topY = portal.getTop() + 1.0 - TANGENT_INSET;
-        double bottomY = portal.getBottom() + TANGENT_INSET;
-        double left = portal.getLeft() + TANGENT_INSET;
-        double right = portal.getRight() + 1.0 - TANGENT_INSET;
-
+    private Vec3d getTangentPoint(Portal portal, TangentSide side, double closePlaneCoordinate) {
         double midContentAxis = (portal.getLeft() + portal.getRight() + 1.0) / 2.0;
         double midY = (portal.getBottom() + portal.getTop() + 1.0) / 2.0;
 
-        Map<TangentSide, Vec3d> points = new EnumMap<>(TangentSide.class);
+        double contentCoordinate = switch (side) {
+            case TOP, BOTTOM -> midContentAxis;
+            case LEFT -> portal.getLeft() + TANGENT_INSET;
+            case RIGHT -> portal.getRight() + 1.0 - TANGENT_INSET;
+        };
+        double y = switch (side) {
+            case TOP -> portal.getTop() + 1.0 - TANGENT_INSET;
+            case BOTTOM -> portal.getBottom() + TANGENT_INSET;
+            case LEFT, RIGHT -> midY;
+        };
 
-        if (planeAxis == Direction.Axis.X) {
-            points.put(TangentSide.TOP, new Vec3d(closePlaneCoordinate, topY, midContentAxis));
-            points.put(TangentSide.BOTTOM, new Vec3d(closePlaneCoordinate, bottomY, midContentAxis));
-            points.put(TangentSide.LEFT, new Vec3d(closePlaneCoordinate, midY, left));
-            points.put(TangentSide.RIGHT, new Vec3d(closePlaneCoordinate, midY, right));
+        if (Util.rotate(portal.getAxis()) == Direction.Axis.X) {
+            return new Vec3d(closePlaneCoordinate, y, contentCoordinate);
         } else { // planeAxis == Z
-            points.put(TangentSide.TOP, new Vec3d(midContentAxis, topY, closePlaneCoordinate));
-            points.put(TangentSide.BOTTOM, new Vec3d(midContentAxis, bottomY, closePlaneCoordinate));
-            points.put(TangentSide.LEFT, new Vec3d(left, midY, closePlaneCoordinate));
-            points.put(TangentSide.RIGHT, new Vec3d(right, midY, closePlaneCoordinate));
+            return new Vec3d(contentCoordinate, y, closePlaneCoordinate);
         }
-        return points;
     }
 
-    private boolean isFrameBlock(BlockPos pos, Portal portal, AsyncWorldView worldView) {
-        if (!worldView.getBlock(pos).isFullCube(worldView, pos)) {
+    static boolean isFrameBlock(BlockPos pos, BlockState state, Portal portal, AsyncWorldView worldView) {
+        if (!state.isFullCube(worldView, pos)) {
             return false;
         }
 
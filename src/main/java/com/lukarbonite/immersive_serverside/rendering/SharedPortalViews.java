@@ -0,0 +1,193 @@
+package com.lukarbonite.immersive_serverside.rendering;
+
+import com.lukarbonite.immersive_serverside.IC_Config;
+import com.lukarbonite.immersive_serverside.Util;
+import com.lukarbonite.immersive_serverside.objects.*;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.network.packet.Packet;
+import net.minecraft.registry.RegistryKey;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.Vec3d;
+import net.minecraft.world.World;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Views of portals for players who are too far away for their exact position to matter.
+ * Each side of a portal gets one view, built at a low rate from a fixed viewpoint on the portal's normal,
+ * and its encoded packets are shared by every distant viewer of that side.
+ */
+public class SharedPortalViews {
+    // Views nobody asked for in this many portal ticks are dropped
+    private static final int EVICT_AFTER_TICKS = 200;
+
+    private final IC_Config icConfig;
+    private final Map<Key, View> views = new ConcurrentHashMap<>();
+    private int nextVersion;
+
+    // The profile is part of the key, so a relinked portal gets a new view instead of showing its old destination
+    public record Key(RegistryKey<World> world, BlockPos lowerLeft, boolean positiveSide, @Nullable TransformProfile transformProfile) {}
+
+    public static class View {
+        private final int version;
+        private int builtAt;
+        private final Long2ObjectMap<BlockState> states;
+        // The cells inside the atmosphere, which are lit like the destination
+        private final SectionBitSet lit;
+        private final Long2ObjectMap<Packet<?>> blockEntityPackets;
+        private final List<Packet<?>> packets;
+        private volatile int lastUsed;
+
+        private View(int version, int builtAt, Long2ObjectMap<BlockState> states, SectionBitSet lit, Long2ObjectMap<Packet<?>> blockEntityPackets, List<Packet<?>> packets) {
+            this.version = version;
+            this.builtAt = builtAt;
+            this.lastUsed = builtAt;
+            this.states = states;
+            this.lit = lit;
+            this.blockEntityPackets = blockEntityPackets;
+            this.packets = packets;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public Long2ObjectMap<BlockState> getStates() {
+            return states;
+        }
+
+        public SectionBitSet getLit() {
+            return lit;
+        }
+
+        /**
+         * The block entity packet of a single cell, for viewers that get the view cell by cell instead of as a whole.
+         */
+        @Nullable
+        public Packet<?> getBlockEntityPacket(long packedPos) {
+            return blockEntityPackets.get(packedPos);
+        }
+
+        /**
+         * The encoded view, every cell of it plus the block entities.
+         */
+        public List<Packet<?>> getPackets() {
+            return packets;
+        }
+    }
+
+    public SharedPortalViews(IC_Config icConfig) {
+        this.icConfig = icConfig;
+    }
+
+    public static Key getKey(Portal portal, ServerWorld sourceWorld, Vec3d eyePos) {
+        Direction.Axis portalPlaneAxis = Util.rotate(portal.getAxis());
+        boolean positiveSide = Util.get(eyePos, portalPlaneAxis) > Util.get(portal.getLowerLeft(), portalPlaneAxis) + 0.5;
+        return new Key(sourceWorld.getRegistryKey(), portal.getLowerLeft(), positiveSide, portal.getTransformProfile());
+    }
+
+    /**
+     * Returns the view for the given side of the portal, rebuilding it first if it is older than {@code sharedViewRebuildTicks}.
+     * A rebuild that shows the same states keeps the old version, so viewers that have it aren't sent it again.
+     * Block entity contents aren't compared, they only come along when their cell's state changes.
+     * Must be called from the portal thread.
+     */
+    public View get(Key key, Portal portal, AsyncWorldView sourceView, AsyncWorldView destinationView, int tickCount) {
+        View view = views.get(key);
+        if (view == null || tickCount - view.builtAt >= icConfig.sharedViewRebuildTicks) {
+            View rebuilt = build(key, portal, sourceView, destinationView, tickCount);
+            if (view != null && view.states.equals(rebuilt.states)) {
+                view.builtAt = tickCount;
+            } else {
+                view = rebuilt;
+                views.put(key, view);
+            }
+        }
+        view.lastUsed = tickCount;
+        return view;
+    }
+
+    public void evictUnused(int tickCount) {
+        views.values().removeIf(view -> tickCount - view.lastUsed > EVICT_AFTER_TICKS);
+    }
+
+    private View build(Key key, Portal portal, AsyncWorldView sourceView, AsyncWorldView destinationView, int tickCount) {
+        TransformProfile transformProfile = portal.getTransformProfile();
+        Long2ObjectMap<BlockState> states = new Long2ObjectOpenHashMap<>();
+        SectionBitSet lit = new SectionBitSet();
+        Long2ObjectMap<Packet<?>> blockEntityPackets = new Long2ObjectOpenHashMap<>();
+        BlockUpdateMap blockUpdates = new BlockUpdateMap();
+        ServerWorld sourceWorld = sourceView.getWorld();
+
+        // Look at the portal head-on from where the shared views start to be used
+        Direction.Axis portalPlaneAxis = Util.rotate(portal.getAxis());
+        Vec3d portalCenter = portal.toFlatStandingRectangle().getCenter();
+        double planeOffset = key.positiveSide() ? icConfig.sharedViewDistance + 0.5 : -icConfig.sharedViewDistance + 0.5;
+        Vec3d viewpoint = portalCenter.withAxis(portalPlaneAxis, Util.get(portal.getLowerLeft(), portalPlaneAxis) + planeOffset);
+
+        double atmosphereRadius = Math.sqrt(icConfig.squaredAtmosphereRadius);
+        AtmosphereShell atmosphereShell = AtmosphereShell.of(portalCenter, icConfig);
+        BlockPos shellOrigin = AtmosphereShell.getOrigin(portalCenter);
+        boolean shellOnly = icConfig.atmosphereShellOnly;
+        ViewFrustum viewFrustum = new ViewFrustum(viewpoint, portal, atmosphereRadius);
+        Util.WorldHeights worldHeights = Util.calculateMinMax(sourceWorld, destinationView.getWorld(), transformProfile);
+        int bottomOfWorld = worldHeights.min();
+        BlockState atmosphereBlock = PortalRenderer.getAtmosphereBlock(sourceWorld);
+        BlockState atmosphereBetweenBlock = PortalRenderer.getAtmosphereBetweenBlock(sourceWorld);
+        Long2ObjectMap<Optional<BlockState>> uniformSections = new Long2ObjectOpenHashMap<>();
+        // The view has to reach the atmosphere's outer layer, anything shallower leaves a hole behind the portal
+        int depth = Math.max(icConfig.sharedViewDepth, (int) Math.ceil(atmosphereRadius) + PortalRenderer.SHELL_DEPTH_MARGIN);
+
+        // The same cells as the exact renderer, seen from a fixed viewpoint: the atmosphere and the world floor
+        // around the destination they frame.
+        viewFrustum.iterate(posInFrustum -> {
+            int shellClass = atmosphereShell.classify(posInFrustum.getX() - shellOrigin.getX(), posInFrustum.getY() - shellOrigin.getY(), posInFrustum.getZ() - shellOrigin.getZ());
+            if (shellOnly && shellClass == AtmosphereShell.BEYOND_SHELL) return;
+            if (PortalRenderer.isFrameBlock(posInFrustum, sourceView.getBlock(posInFrustum), portal, sourceView)) return;
+
+            BlockPos immutablePos = posInFrustum.toImmutable();
+            BlockState newState;
+            BlockEntity newBlockEntity = null;
+            if (shellClass != AtmosphereShell.INSIDE) {
+                newState = shellClass == AtmosphereShell.BETWEEN ? atmosphereBetweenBlock : atmosphereBlock;
+            } else {
+                lit.add(immutablePos);
+                BlockPos transformedPos = transformProfile.transform(immutablePos);
+                newState = PortalRenderer.resolveDestinationState(portal, transformProfile, transformedPos, destinationView, uniformSections);
+                if (newState.hasBlockEntity()) newBlockEntity = destinationView.getBlockEntity(transformedPos);
+            }
+            if (posInFrustum.getY() == bottomOfWorld) {
+                newState = atmosphereBlock;
+                newBlockEntity = null;
+            }
+            if (posInFrustum.getY() == bottomOfWorld + 1) {
+                newState = atmosphereBetweenBlock;
+                newBlockEntity = null;
+            }
+            states.put(immutablePos.asLong(), newState);
+            blockUpdates.put(immutablePos, newState);
+
+            if (newBlockEntity != null) {
+                Packet<?> packet = Util.createFakeBlockEntityPacket(newBlockEntity, immutablePos, sourceWorld);
+                if (packet != null) {
+                    blockEntityPackets.put(immutablePos.asLong(), packet);
+                }
+            }
+        }, depth, bottomOfWorld, worldHeights.max());
+
+        List<Packet<?>> allPackets = new ArrayList<>(blockUpdates.toPackets());
+        allPackets.addAll(blockEntityPackets.values());
+        return new View(nextVersion++, tickCount, states, lit, blockEntityPackets, Collections.unmodifiableList(allPackets));
+    }
+}